@@ -0,0 +1,307 @@
+/*
+ * Copyright (C) 2023 util2
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.wingate.progressive;
+
+import java.awt.Dimension;
+import java.awt.GraphicsEnvironment;
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.Mixer;
+import org.wingate.progressive.core.AudioDevices;
+import org.wingate.progressive.core.Calibration;
+import org.wingate.progressive.core.CaptureAV;
+import org.wingate.progressive.core.CaptureOptions;
+import org.wingate.progressive.core.ControlServer;
+import org.wingate.progressive.core.TranscodeJob;
+import org.wingate.progressive.core.TranscodeQueue;
+
+/**
+ * Recording from the command line, without any Swing component: no look and
+ * feel, no window, the audio devices are only enumerated when one is asked
+ * for. SIGTERM (or Ctrl+C) stops the capture and waits for the file to be
+ * finalized before the JVM exits.
+ *
+ * @author util2
+ */
+public class CommandLine {
+
+    private final static String USAGE = """
+            Usage: progressive --output <file> [options]
+                   progressive --serve <port>
+                   progressive --transcode <folder> [--priority <n>] [--jobs <n>] [--chunked] <file>...
+              --output <file>       file to create
+              --format <mp4|mkv>    container, from the extension by default
+              --region <x,y,w,h>    area of screen in screen pixels, the primary screen by default
+              --fps <n>             frames per second (%d)
+              --preset <name>       encoder preset (%s)
+              --crf <n>             encoder constant rate factor (%d)
+              --audio <name,...>    audio device, several are mixed, none by default
+              --audio-codec <name>  aac, opus or flac (lossless), aac by default
+              --stream <url>        also stream to rtmp://, srt:// or udp://
+              --index <true|false>  write the seek index next to the file (true)
+              --timelapse <seconds> one frame every this many seconds, played
+                                    back at --fps, no audio
+              --size <wxh>          scale the video, the pixels of the region
+                                    by default (device pixels on HiDPI)
+              --duration <seconds>  stop by itself after this time
+              --serve <port>        control API on localhost, see ControlServer
+              --transcode <folder>  re-encode the files to archive settings in
+                                    this folder, resumes what was left there
+              --priority <n>        with --transcode, higher runs first (0)
+              --jobs <n>            with --transcode, files encoded at once (cores/4),
+                                    a chunked file alone in the queue gets the cores of them all
+              --chunked             with --transcode, cut long files and encode
+                                    the pieces in parallel
+              --list-audio          list the audio devices and quit
+              --calibrate           measure this machine again and quit
+              --help                show this help
+            """.formatted(CaptureAV.FRAME_RATE, CaptureAV.PRESET, CaptureAV.CRF);
+
+    // Time given to the encoder to write the trailer on SIGTERM
+    private final static long FINALIZE_TIMEOUT_SECONDS = 30;
+
+    public CommandLine() {
+    }
+
+    /**
+     * @param args the command line arguments
+     * @return the exit code
+     */
+    public static int run(String[] args){
+        Map<String, String> values = new LinkedHashMap<>();
+        long duration = 0;
+
+        for(int i=0; i<args.length; i++){
+            String arg = args[i];
+            switch(arg){
+                case "--help", "-h" -> {
+                    System.out.print(USAGE);
+                    return 0;
+                }
+                case "--serve" -> {
+                    return serve(i + 1 < args.length ? args[i + 1] : "");
+                }
+                case "--transcode" -> {
+                    if(i + 1 >= args.length){
+                        System.err.print(USAGE);
+                        return 2;
+                    }
+                    return transcode(args, i + 1);
+                }
+                case "--calibrate" -> {
+                    return calibrate();
+                }
+                case "--list-audio" -> {
+                    // Capture devices only, with the format they'll be opened with
+                    for(Mixer.Info info : AudioSystem.getMixerInfo()){
+                        AudioFormat format = AudioDevices.probe(info);
+                        if(format != null){
+                            System.out.println(info.getName() + " (" + format + ")");
+                        }
+                    }
+                    return 0;
+                }
+                default -> {
+                    if(!arg.startsWith("--") || i + 1 >= args.length){
+                        System.err.println("Invalid argument: " + arg);
+                        System.err.print(USAGE);
+                        return 2;
+                    }
+                    String key = arg.substring(2);
+                    String value = args[++i];
+                    if(key.equals("duration")){
+                        try {
+                            duration = Long.parseLong(value);
+                        } catch (NumberFormatException ex) {
+                            System.err.println("Invalid duration: " + value);
+                            return 2;
+                        }
+                    }else{
+                        values.put(key, value);
+                    }
+                }
+            }
+        }
+
+        CaptureAV capture;
+        try {
+            CaptureOptions options = CaptureOptions.parse(values);
+            // The preset measured on this machine, unless one is given
+            options.applyCalibration(Calibration.load(new File(Calibration.FILE_NAME)));
+            capture = options.createCapture();
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            System.err.print(USAGE);
+            return 2;
+        }
+
+        // SIGTERM, SIGINT: finalize the file before leaving
+        Thread hook = new Thread(() -> {
+            capture.stopRecording();
+            try {
+                capture.awaitTermination(FINALIZE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }, "Finalize");
+        Runtime.getRuntime().addShutdownHook(hook);
+
+        capture.startRecording();
+
+        try {
+            if(duration > 0){
+                if(!capture.awaitTermination(duration, TimeUnit.SECONDS)){
+                    capture.stopRecording();
+                }
+            }
+            capture.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return 1;
+        }
+
+        // Normal end, the hook has nothing left to do
+        removeShutdownHook(hook);
+        // From the result itself, whatever the order it is set in
+        return capture.getFinalization().handle((file, ex) -> ex == null ? 0 : 1).join();
+    }
+
+    /**
+     * Removes a hook after a normal end. On SIGTERM or SIGINT the hook is
+     * what ended the wait and the JVM is already shutting down, it can't be
+     * removed anymore and has done its job.
+     * @param hook the hook added before the wait
+     */
+    private static void removeShutdownHook(Thread hook){
+        try {
+            Runtime.getRuntime().removeShutdownHook(hook);
+        } catch (IllegalStateException ex) {
+            // Shutdown in progress
+        }
+    }
+    
+    private static int transcode(String[] args, int start){
+        File folder = new File(args[start]);
+        int priority = 0;
+        int jobs = 0;
+        boolean chunked = false;
+        List<File> files = new ArrayList<>();
+        try {
+            for(int i=start + 1; i<args.length; i++){
+                switch(args[i]){
+                    case "--priority" -> priority = Integer.parseInt(args[++i]);
+                    case "--jobs" -> jobs = Integer.parseInt(args[++i]);
+                    case "--chunked" -> chunked = true;
+                    default -> files.add(new File(args[i]));
+                }
+            }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException ex) {
+            System.err.print(USAGE);
+            return 2;
+        }
+        if(!folder.isDirectory() && !folder.mkdirs()){
+            System.err.println("Can't create " + folder);
+            return 1;
+        }
+
+        File journal = new File(folder, TranscodeQueue.JOURNAL_NAME);
+        TranscodeQueue queue = jobs > 0 ? new TranscodeQueue(journal, jobs) : new TranscodeQueue(journal);
+        queue.setChunked(chunked);
+        queue.addChangeListener((job) -> System.out.println(job + ": " + job.getState().name().toLowerCase()));
+        // Left by a previous run that was stopped or crashed
+        queue.resume();
+        for(File file : files){
+            queue.submit(file, new File(folder, file.getName()), priority);
+        }
+
+        // SIGTERM, SIGINT: the journal keeps what is left for the next run
+        Thread hook = new Thread(queue::shutdown, "Transcode");
+        Runtime.getRuntime().addShutdownHook(hook);
+        try {
+            queue.awaitIdle(Long.MAX_VALUE, TimeUnit.DAYS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return 1;
+        }
+        removeShutdownHook(hook);
+        queue.shutdown();
+
+        for(TranscodeJob job : queue.getJobs()){
+            if(job.getState() == TranscodeJob.State.FAILED) return 1;
+        }
+        return 0;
+    }
+
+    private static int calibrate(){
+        AudioDevices devices = new AudioDevices();
+        devices.start();
+        try {
+            devices.awaitReady(10, TimeUnit.SECONDS);
+            Dimension screen = null;
+            if(!GraphicsEnvironment.isHeadless()){
+                Rectangle bounds = GraphicsEnvironment.getLocalGraphicsEnvironment()
+                        .getDefaultScreenDevice().getDefaultConfiguration().getBounds();
+                screen = bounds.getSize();
+            }
+            Calibration calibration = Calibration.run(screen, devices.getDevices());
+            calibration.save(new File(Calibration.FILE_NAME));
+            System.out.print(calibration);
+            return 0;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return 1;
+        } finally {
+            devices.stop();
+        }
+    }
+    
+    private static int serve(String port){
+        ControlServer server;
+        try {
+            server = new ControlServer(Integer.parseInt(port));
+        } catch (NumberFormatException ex) {
+            System.err.println("Invalid port: " + port);
+            return 2;
+        } catch (IOException ex) {
+            Logger.getLogger(CommandLine.class.getName()).log(Level.SEVERE, null, ex);
+            return 1;
+        }
+        
+        // SIGTERM, SIGINT: stop every session still recording
+        Runtime.getRuntime().addShutdownHook(new Thread(server::stop, "Finalize"));
+        server.start();
+        System.out.println("Listening on http://localhost:" + server.getPort() + "/sessions");
+        System.out.println("Token in " + server.getTokenFile().getAbsolutePath());
+        
+        try {
+            Thread.currentThread().join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        return 0;
+    }
+}
@@ -17,25 +17,42 @@
 package org.wingate.progressive;
 
 import java.awt.AWTException;
-import java.awt.Dimension;
+import java.awt.EventQueue;
 import java.awt.Rectangle;
-import java.awt.Robot;
 import java.awt.Toolkit;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.awt.image.BufferedImage;
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.LineUnavailableException;
 import javax.sound.sampled.Mixer;
 import javax.swing.DefaultComboBoxModel;
 import javax.swing.JFileChooser;
 import javax.swing.JOptionPane;
+import org.bytedeco.javacv.FrameGrabber;
+import org.wingate.progressive.core.AudioCodec;
+import org.wingate.progressive.core.AudioDevices;
+import org.wingate.progressive.core.AudioMixer;
+import org.wingate.progressive.core.Calibration;
 import org.wingate.progressive.core.CaptureAV;
 import org.wingate.progressive.core.Configuration;
+import org.wingate.progressive.core.CursorOverlay;
 import org.wingate.progressive.core.FileType;
+import org.wingate.progressive.core.Finalization;
 import org.wingate.progressive.core.IO;
+import org.wingate.progressive.core.MultiCapture;
+import org.wingate.progressive.core.ScreenSource;
+import org.wingate.progressive.core.StreamOutput;
+import org.wingate.progressive.core.TranscodeJob;
+import org.wingate.progressive.core.TranscodeQueue;
+import org.wingate.progressive.core.WebcamOverlay;
 
 /**
  *
@@ -50,6 +67,64 @@ public class MainFrame extends javax.swing.JFrame {
     
     private Rectangle r = new Rectangle(1280, 720);
     
+    // Plusieurs zones ou plusieurs écrans : un fichier par zone
+    private List<Rectangle> regions = new ArrayList<>();
+    private MultiCapture multi = null;
+    private final javax.swing.JCheckBoxMenuItem miAllScreens = new javax.swing.JCheckBoxMenuItem();
+    
+    // Robot ne capture pas le pointeur de la souris, on le dessine
+    private final javax.swing.JCheckBoxMenuItem miCursor = new javax.swing.JCheckBoxMenuItem();
+    
+    // Incrustation webcam (périphérique, fichier vidéo ou "mire")
+    private final static int WEBCAM_WIDTH = 320;
+    private final static int WEBCAM_HEIGHT = 180;
+    private String webcamSource = null;
+    private WebcamOverlay webcam = null;
+    private final javax.swing.JMenuItem miWebcam = new javax.swing.JMenuItem();
+    
+    // Capture préparée à l'avance, le départ est immédiat
+    private final javax.swing.JMenuItem miArm = new javax.swing.JMenuItem();
+    
+    // Pause sans fermer le fichier
+    private final javax.swing.JMenuItem miPause = new javax.swing.JMenuItem();
+    
+    // Périphériques audio, énumérés et sondés une seule fois
+    private final AudioDevices audioDevices = new AudioDevices();
+    
+    // Mesures de la machine, faites au premier lancement puis relues
+    private volatile Calibration calibration = Calibration.load(new File(Calibration.FILE_NAME));
+    
+    // Codec audio : AAC partout, Opus plus léger, FLAC sans perte
+    private final javax.swing.JMenu mAudioCodec = new javax.swing.JMenu("Codec audio");
+    private final javax.swing.ButtonGroup bgAudioCodec = new javax.swing.ButtonGroup();
+    
+    // Deuxième source audio mixée avec la première (micro + son du système)
+    private String secondAudio = null;
+    private final javax.swing.JMenuItem miSecondAudio = new javax.swing.JMenuItem();
+    
+    // Statistiques en direct, sous le formulaire
+    private final StatsPanel statsPanel = new StatsPanel();
+    
+    // Mode replay : on garde les 30 dernières secondes en mémoire (256 Mo max)
+    private final static int REPLAY_SECONDS = 30;
+    private final static long REPLAY_MAX_BYTES = 256L * 1024L * 1024L;
+    private final javax.swing.JCheckBoxMenuItem miReplayMode = new javax.swing.JCheckBoxMenuItem();
+    private final javax.swing.JMenuItem miReplaySave = new javax.swing.JMenuItem();
+    
+    // Diffusion en direct en plus du fichier (RTMP, SRT, UDP)
+    private String streamUrl = null;
+    private final javax.swing.JMenuItem miStream = new javax.swing.JMenuItem();
+    
+    // Timelapse : une image toutes les quelques secondes, sans le son
+    private long timelapseMillis = 0;
+    private final javax.swing.JMenuItem miTimelapse = new javax.swing.JMenuItem();
+    
+    // Réencodage des enregistrements terminés pour l'archivage, en
+    // arrière-plan, repris au lancement suivant en cas d'arrêt
+    private final TranscodeQueue transcodes = new TranscodeQueue(new File(TranscodeQueue.JOURNAL_NAME));
+    private final javax.swing.JMenuItem miTranscodeStatus = new javax.swing.JMenuItem();
+    private final javax.swing.Timer transcodeTimer = new javax.swing.Timer(1000, (evt) -> updateTranscodes());
+    
     /**
      * Creates new form MainFrame
      */
@@ -61,20 +136,33 @@ public class MainFrame extends javax.swing.JFrame {
             dcbmFileType.addElement(ft);
         }
         
+        // Les périphériques audio arrivent en arrière-plan, et la liste suit
+        // les branchements
         cbDevice.setModel(dcbmMixer);
-        boolean seenCapture = false;
-        for(Mixer.Info info : AudioSystem.getMixerInfo()){
-            String name = info.getName().toLowerCase();
-            
-            if(name.startsWith("port ") == false && seenCapture){
-                dcbmMixer.addElement(info.getName());
-            }
-            
-            if(!seenCapture && name.contains("capture")){
-                seenCapture = true;
-            }
+        audioDevices.addChangeListener(() -> EventQueue.invokeLater(this::updateDevices));
+        if(calibration != null){
+            // Formats déjà sondés à la calibration, rien à rouvrir
+            audioDevices.addKnownFormats(calibration.getAudioFormats());
+        }
+        audioDevices.start();
+        if(calibration == null){
+            calibrate();
         }
-        cbDevice.setSelectedIndex(0);
+        
+        initMenu();
+        
+        // Les réencodages interrompus reprennent
+        transcodes.addChangeListener((job) -> EventQueue.invokeLater(this::updateTranscodes));
+        transcodes.resume();
+        transcodeTimer.start();
+        
+        // Le formulaire garde sa mise en page, les statistiques vont dessous
+        java.awt.Container form = getContentPane();
+        javax.swing.JPanel root = new javax.swing.JPanel(new java.awt.BorderLayout());
+        root.add(form, java.awt.BorderLayout.CENTER);
+        root.add(statsPanel, java.awt.BorderLayout.SOUTH);
+        setContentPane(root);
+        pack();
         
         // En dernier, on charge la configuration, si elle existe
         File configFile = new File("config.txt");
@@ -86,6 +174,288 @@ public class MainFrame extends javax.swing.JFrame {
         }
     }
 
+    private void calibrate(){
+        // Premier lancement, nouvelle machine ou nouvelle JVM : quelques
+        // secondes de mesure en arrière-plan, une fois les périphériques connus
+        Thread t = new Thread(() -> {
+            try {
+                audioDevices.awaitReady(10, TimeUnit.SECONDS);
+                Calibration c = Calibration.run(
+                        Toolkit.getDefaultToolkit().getScreenSize(),
+                        audioDevices.getDevices()
+                );
+                c.save(new File(Calibration.FILE_NAME));
+                calibration = c;
+            } catch (InterruptedException ex) {
+                Logger.getLogger(MainFrame.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }, "Calibration");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        t.start();
+    }
+    
+    private void updateDevices(){
+        Object selected = cbDevice.getSelectedItem();
+        dcbmMixer.removeAllElements();
+        for(AudioDevices.Device device : audioDevices.getDevices()){
+            dcbmMixer.addElement(device.getName());
+        }
+        if(selected != null && audioDevices.find(selected.toString()) != null){
+            cbDevice.setSelectedItem(selected);
+        }else if(dcbmMixer.getSize() > 0){
+            cbDevice.setSelectedIndex(0);
+        }
+    }
+    
+    private void initMenu(){
+        javax.swing.JMenuBar menuBar = new javax.swing.JMenuBar();
+        javax.swing.JMenu mRecord = new javax.swing.JMenu("Enregistrement");
+        
+        miArm.setText("Armer l'enregistrement");
+        miArm.addActionListener((evt) -> armCapture());
+        mRecord.add(miArm);
+        
+        miPause.setText("Pause");
+        miPause.setAccelerator(javax.swing.KeyStroke.getKeyStroke(
+                java.awt.event.KeyEvent.VK_P, java.awt.event.InputEvent.CTRL_DOWN_MASK));
+        miPause.setEnabled(false);
+        miPause.addActionListener((evt) -> togglePause());
+        mRecord.add(miPause);
+        
+        mRecord.addSeparator();
+        
+        miReplayMode.setText("Mode replay (" + REPLAY_SECONDS + " dernières secondes)");
+        mRecord.add(miReplayMode);
+        
+        miReplaySave.setText("Sauver le replay");
+        miReplaySave.setAccelerator(javax.swing.KeyStroke.getKeyStroke(
+                java.awt.event.KeyEvent.VK_R, java.awt.event.InputEvent.CTRL_DOWN_MASK));
+        miReplaySave.setEnabled(false);
+        miReplaySave.addActionListener((evt) -> saveReplay());
+        mRecord.add(miReplaySave);
+        
+        mRecord.addSeparator();
+        
+        miAllScreens.setText("Enregistrer tous les écrans");
+        mRecord.add(miAllScreens);
+        
+        miCursor.setText("Afficher le curseur de la souris");
+        miCursor.setSelected(true);
+        mRecord.add(miCursor);
+        
+        miWebcam.setText("Incrustation webcam : aucune");
+        miWebcam.addActionListener((evt) -> {
+            String source = JOptionPane.showInputDialog(
+                    this,
+                    "Webcam (/dev/video0, nom du périphérique), fichier vidéo ou \"mire\", vide pour aucune :",
+                    webcamSource == null ? "" : webcamSource
+            );
+            if(source == null) return;
+            webcamSource = source.isBlank() ? null : source.trim();
+            miWebcam.setText("Incrustation webcam : " + (webcamSource == null ? "aucune" : webcamSource));
+        });
+        mRecord.add(miWebcam);
+        
+        miSecondAudio.setText("Deuxième source audio : aucune");
+        miSecondAudio.addActionListener((evt) -> {
+            List<String> names = new ArrayList<>();
+            names.add("aucune");
+            for(AudioDevices.Device device : audioDevices.getDevices()){
+                names.add(device.getName());
+            }
+            Object name = JOptionPane.showInputDialog(
+                    this,
+                    "Source mixée avec le périphérique choisi :",
+                    "Deuxième source audio",
+                    JOptionPane.QUESTION_MESSAGE,
+                    null,
+                    names.toArray(),
+                    secondAudio == null ? "aucune" : secondAudio
+            );
+            if(name == null) return;
+            secondAudio = name.equals("aucune") ? null : name.toString();
+            miSecondAudio.setText("Deuxième source audio : " + (secondAudio == null ? "aucune" : secondAudio));
+        });
+        mRecord.add(miSecondAudio);
+        
+        for(AudioCodec codec : AudioCodec.values()){
+            javax.swing.JRadioButtonMenuItem item = new javax.swing.JRadioButtonMenuItem(codec.toString());
+            item.setActionCommand(codec.name());
+            item.setSelected(codec == AudioCodec.AAC);
+            bgAudioCodec.add(item);
+            mAudioCodec.add(item);
+        }
+        mRecord.add(mAudioCodec);
+        
+        mRecord.addSeparator();
+        
+        miStream.setText("Diffusion en direct : aucune");
+        miStream.addActionListener((evt) -> {
+            String url = JOptionPane.showInputDialog(
+                    this,
+                    "Adresse de diffusion (rtmp://, srt://, udp://), vide pour aucune :",
+                    streamUrl == null ? "" : streamUrl
+            );
+            if(url == null) return;
+            streamUrl = url.isBlank() ? null : url.trim();
+            miStream.setText("Diffusion en direct : " + (streamUrl == null ? "aucune" : streamUrl));
+        });
+        mRecord.add(miStream);
+        
+        miTimelapse.setText("Timelapse : désactivé");
+        miTimelapse.addActionListener((evt) -> {
+            String seconds = JOptionPane.showInputDialog(
+                    this,
+                    "Secondes entre deux images (lues à la fréquence normale), vide pour désactiver :",
+                    timelapseMillis == 0 ? "" : Double.toString(timelapseMillis / 1000d)
+            );
+            if(seconds == null) return;
+            try {
+                timelapseMillis = seconds.isBlank() ? 0 : Math.max(0, Math.round(Double.parseDouble(seconds.trim().replace(',', '.')) * 1000));
+            } catch (NumberFormatException ex) {
+                return;
+            }
+            miTimelapse.setText("Timelapse : " + (timelapseMillis == 0 ? "désactivé" : "une image toutes les " + timelapseMillis / 1000d + " s"));
+        });
+        mRecord.add(miTimelapse);
+        
+        menuBar.add(mRecord);
+        
+        javax.swing.JMenu mArchive = new javax.swing.JMenu("Archivage");
+        
+        javax.swing.JMenuItem miTranscode = new javax.swing.JMenuItem("Réencoder des enregistrements...");
+        miTranscode.addActionListener((evt) -> addTranscodes());
+        mArchive.add(miTranscode);
+        
+        javax.swing.JMenuItem miTranscodeCancel = new javax.swing.JMenuItem("Annuler un réencodage...");
+        miTranscodeCancel.addActionListener((evt) -> cancelTranscode());
+        mArchive.add(miTranscodeCancel);
+        
+        // Un long enregistrement est découpé et encodé sur tous les cœurs
+        javax.swing.JCheckBoxMenuItem miChunked = new javax.swing.JCheckBoxMenuItem("Découper les longs enregistrements");
+        miChunked.setSelected(true);
+        transcodes.setChunked(true);
+        miChunked.addActionListener((evt) -> transcodes.setChunked(miChunked.isSelected()));
+        mArchive.add(miChunked);
+        
+        mArchive.addSeparator();
+        
+        miTranscodeStatus.setEnabled(false);
+        mArchive.add(miTranscodeStatus);
+        updateTranscodes();
+        
+        menuBar.add(mArchive);
+        setJMenuBar(menuBar);
+    }
+    
+    private void addTranscodes(){
+        JFileChooser chooser = new JFileChooser(tfFolder.getText());
+        chooser.setMultiSelectionEnabled(true);
+        chooser.setDialogTitle("Enregistrements à réencoder");
+        if(chooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) return;
+        
+        String[] priorities = { "Normale", "Haute" };
+        Object priority = JOptionPane.showInputDialog(
+                this,
+                "Priorité :",
+                "Réencoder",
+                JOptionPane.QUESTION_MESSAGE,
+                null,
+                priorities,
+                priorities[0]
+        );
+        if(priority == null) return;
+        
+        // Les archives vont dans un sous-dossier, sous le même nom
+        for(File file : chooser.getSelectedFiles()){
+            File folder = new File(file.getParentFile(), "archive");
+            folder.mkdirs();
+            transcodes.submit(file, new File(folder, file.getName()), priority == priorities[1] ? 1 : 0);
+        }
+    }
+    
+    private void cancelTranscode(){
+        List<TranscodeJob> active = new ArrayList<>();
+        for(TranscodeJob job : transcodes.getJobs()){
+            if(job.getState() == TranscodeJob.State.QUEUED || job.getState() == TranscodeJob.State.RUNNING){
+                active.add(job);
+            }
+        }
+        if(active.isEmpty()){
+            JOptionPane.showMessageDialog(this, "Aucun réencodage en cours.");
+            return;
+        }
+        Object job = JOptionPane.showInputDialog(
+                this,
+                "Réencodage à annuler :",
+                "Annuler",
+                JOptionPane.QUESTION_MESSAGE,
+                null,
+                active.toArray(),
+                active.get(0)
+        );
+        if(job != null) transcodes.cancel((TranscodeJob) job);
+    }
+    
+    private void updateTranscodes(){
+        int running = 0, queued = 0;
+        double progress = 0;
+        for(TranscodeJob job : transcodes.getJobs()){
+            if(job.getState() == TranscodeJob.State.RUNNING){
+                running++;
+                progress += job.getProgress();
+            }else if(job.getState() == TranscodeJob.State.QUEUED){
+                queued++;
+            }
+        }
+        if(running == 0 && queued == 0){
+            miTranscodeStatus.setText("Aucun réencodage");
+        }else{
+            miTranscodeStatus.setText(String.format("Réencodage : %d en cours (%d %%), %d en attente",
+                    running, Math.round(100 * progress / Math.max(1, running)), queued));
+        }
+    }
+    
+    private void togglePause(){
+        boolean pause = miPause.getText().equals("Pause");
+        if(multi != null){
+            if(pause) multi.pause(); else multi.resume();
+        }else if(cAV != null){
+            if(pause) cAV.pause(); else cAV.resume();
+        }else{
+            return;
+        }
+        miPause.setText(pause ? "Reprendre" : "Pause");
+        statsPanel.setState(pause ? "En pause" : "Enregistrement en cours");
+    }
+    
+    private void saveReplay(){
+        // Sauvegarde des dernières secondes, sans bloquer l'interface
+        if(cAV == null) return;
+        CaptureAV capture = cAV;
+        String ext = ((FileType)cbFileType.getSelectedItem()).toString().toLowerCase();
+        File output = new File(
+                tfFolder.getText(),
+                tfFile.getText() + "-replay-" + System.currentTimeMillis() + "." + ext
+        );
+        new Thread(() -> {
+            try {
+                capture.saveReplay(output);
+                EventQueue.invokeLater(() -> {
+                    JOptionPane.showMessageDialog(
+                            this,
+                            "Replay sauvé : " + output.getName(),
+                            "Replay",
+                            JOptionPane.INFORMATION_MESSAGE
+                    );
+                });
+            } catch (IOException ex) {
+                Logger.getLogger(MainFrame.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }).start();
+    }
+
     /**
      * This method is called from within the constructor to initialize the form.
      * WARNING: Do NOT modify this code. The content of this method is always
@@ -257,6 +627,9 @@ public class MainFrame extends javax.swing.JFrame {
             tempFolder.delete();
         }
 
+        // Les réencodages en cours reprendront au prochain lancement
+        transcodes.shutdown();
+        
         // Quitter l'application
         System.exit(0);
     }//GEN-LAST:event_btnQuitActionPerformed
@@ -286,20 +659,19 @@ public class MainFrame extends javax.swing.JFrame {
                     super.mouseClicked(e);
                     if(e.getButton() == MouseEvent.BUTTON3){
                         r = selfrm.getSelectedRegion();
-                        System.out.println("r: " + r.toString());
+                        regions = selfrm.getSelectedRegions();
                         selfrm.setVisible(false);
                         selfrm.dispose();
                     }
                 }
             });
             
-            // On cherche les dimensions de la résolution d'écran
-            Toolkit toolkit = Toolkit.getDefaultToolkit();
-            Dimension screenDimension = toolkit.getScreenSize();
-        
-            Robot robot = new Robot();
-            Rectangle robotRect = new Rectangle(screenDimension);
-            BufferedImage image = robot.createScreenCapture(robotRect);
+            // On cherche les dimensions de tous les écrans, la capture est
+            // en pixels de l'écran : pas de rééchantillonnage sur un bureau
+            // mis à l'échelle
+            Rectangle robotRect = SelectionFrame.getDesktopBounds();
+            ScreenSource screen = new ScreenSource();
+            BufferedImage image = screen.capture(robotRect);
             selfrm.setImage(image);
             
             selfrm.setVisible(true);
@@ -310,19 +682,69 @@ public class MainFrame extends javax.swing.JFrame {
 
     private void btnStartActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_btnStartActionPerformed
         // Commencer l'enregistrement
-        File folder = new File(tfFolder.getText());
-        if(folder.exists() == false) return;
-        if(tfFile.getText().isEmpty()) return;
-        
-        Mixer.Info chosenInfo = null;
-        for(Mixer.Info info : AudioSystem.getMixerInfo()){
-            if(info.getName().equals(cbDevice.getSelectedItem().toString())){
-                chosenInfo = info;
-                break;
+        // Déjà armé : il n'y a plus qu'à donner le départ
+        if(cAV == null && multi == null && !prepareCapture()) return;
+        
+        btnStart.setEnabled(false);
+        btnSet.setEnabled(false);
+        btnQuit.setEnabled(false);
+        miArm.setEnabled(false);
+        
+        CaptureAV capture = cAV;
+        MultiCapture captures = multi;
+        if(captures != null ? captures.isArmed() : capture.isArmed()){
+            if(captures != null){
+                captures.startRecording();
+            }else{
+                capture.startRecording();
             }
+            recordingStarted();
+        }else{
+            // Pas armé à l'avance : FFmpeg, encodeur et ligne audio sont
+            // ouverts hors de l'EDT, Arrêter attend la fin de la préparation
+            btnStop.setEnabled(false);
+            statsPanel.setState("Préparation...");
+            new Thread(() -> {
+                if(captures != null){
+                    captures.startRecording();
+                }else{
+                    capture.startRecording();
+                }
+                EventQueue.invokeLater(this::recordingStarted);
+            }, "Arm").start();
         }
-
-        if(chosenInfo == null) return;
+    }//GEN-LAST:event_btnStartActionPerformed
+    
+    /**
+     * Met l'interface en mode enregistrement, une fois le départ donné.
+     */
+    private void recordingStarted(){
+        boolean armed = multi != null ? multi.isArmed() : cAV.isArmed();
+        btnStop.setEnabled(true);
+        if(!armed){
+            // L'erreur s'affiche à l'arrêt, avec la finalisation
+            statsPanel.setState("Préparation impossible");
+            return;
+        }
+        statsPanel.setStats(multi != null ? multi.getCaptures().get(0).getStats() : cAV.getStats());
+        statsPanel.setState("Enregistrement en cours");
+        miPause.setText("Pause");
+        miPause.setEnabled(true);
+    }
+    
+    /**
+     * Crée la capture avec les réglages du formulaire, sans la démarrer.
+     * @return false si les réglages sont incomplets
+     */
+    private boolean prepareCapture(){
+        File folder = new File(tfFolder.getText());
+        if(folder.exists() == false) return false;
+        if(tfFile.getText().isEmpty()) return false;
+        
+        // Périphérique déjà énuméré et sondé, pas de recherche au démarrage
+        AudioDevices.Device device = audioDevices.find(String.valueOf(cbDevice.getSelectedItem()));
+        if(device == null) return false;
+        Mixer.Info chosenInfo = device.getInfo();
         
 //        TransparentDialog dialog = new TransparentDialog(this, true);
 //        dialog.setLocationRelativeTo(null);
@@ -332,24 +754,156 @@ public class MainFrame extends javax.swing.JFrame {
 //            r = dialog.getSelectedRegion();
 //        }
         
-        btnStop.setEnabled(true);
-        btnStart.setEnabled(false);
-        btnSet.setEnabled(false);
-        btnQuit.setEnabled(false);
-        
 //        cAudio = new CaptureAudio(chosenInfo, folder);
 //        cVideo = new CaptureVideo(r.x, r.y, r.width, r.height, folder);
 //        cAudio.startCapture();
 //        cVideo.startCapture();
 
-        cAV = new CaptureAV(
-                new File(folder, tfFile.getText() + "." + ((FileType)cbFileType.getSelectedItem()).toString().toLowerCase()),
-                r,
-                chosenInfo
-        );
+        File media = new File(folder, tfFile.getText() + "." + ((FileType)cbFileType.getSelectedItem()).toString().toLowerCase());
+        List<Rectangle> chosenRegions = miAllScreens.isSelected() ? SelectionFrame.getScreenBounds() : regions;
+        Rectangle single = chosenRegions.size() == 1 ? chosenRegions.get(0) : r;
         
-        cAV.startRecording();
-    }//GEN-LAST:event_btnStartActionPerformed
+        // Replay et diffusion ne suivent qu'une seule capture
+        if(chosenRegions.size() > 1 && (miReplayMode.isSelected() || streamUrl != null)){
+            JOptionPane.showMessageDialog(
+                    this,
+                    "Le mode replay et la diffusion en direct ne fonctionnent qu'avec une seule zone.\n"
+                    + "Choisissez une seule zone ou désactivez-les.",
+                    "Plusieurs zones",
+                    JOptionPane.WARNING_MESSAGE
+            );
+            return false;
+        }
+        
+        if(chosenRegions.size() > 1){
+            // Une capture par zone, le son va avec la première
+            multi = new MultiCapture(media, chosenRegions, chosenInfo);
+            multi.setAudioFormat(device.getFormat());
+        }else if(miReplayMode.isSelected()){
+            cAV = new CaptureAV(
+                    CaptureAV.createReplayBuffer(REPLAY_SECONDS, REPLAY_MAX_BYTES),
+                    single,
+                    chosenInfo
+            );
+            cAV.setAudioFormat(device.getFormat());
+        }else{
+            cAV = new CaptureAV(
+                    media,
+                    single,
+                    chosenInfo
+            );
+            cAV.setAudioFormat(device.getFormat());
+            if(streamUrl != null){
+                cAV.setStreamOutput(new StreamOutput(streamUrl));
+            }
+        }
+        
+        miReplayMode.setEnabled(false);
+        miStream.setEnabled(false);
+        miTimelapse.setEnabled(false);
+        miAllScreens.setEnabled(false);
+        miCursor.setEnabled(false);
+        miWebcam.setEnabled(false);
+        miSecondAudio.setEnabled(false);
+        mAudioCodec.setEnabled(false);
+        miReplaySave.setEnabled(cAV != null && miReplayMode.isSelected());
+        
+        for(CaptureAV capture : multi != null ? multi.getCaptures() : List.of(cAV)){
+            capture.setTimelapse(timelapseMillis);
+        }
+        
+        AudioCodec audioCodec = AudioCodec.valueOf(bgAudioCodec.getSelection().getActionCommand());
+        if(multi != null){
+            multi.setAudioCodec(audioCodec);
+        }else{
+            cAV.setAudioCodec(audioCodec);
+        }
+        
+        // Le preset le plus compressé que la machine tient à cette taille
+        Calibration c = calibration;
+        if(c != null){
+            for(CaptureAV capture : multi != null ? multi.getCaptures() : List.of(cAV)){
+                Rectangle region = capture.getRegion();
+                // En timelapse, une image par intervalle : le plus lent tient
+                int rate = timelapseMillis > 0 ? 1 : capture.getFrameRate();
+                capture.setPreset(c.getBestPreset(region.width, region.height, rate));
+            }
+        }
+        
+        AudioDevices.Device second = secondAudio == null ? null : audioDevices.find(secondAudio);
+        if(second != null && !second.getName().equals(device.getName())){
+            // Les deux sources au format du premier périphérique
+            AudioMixer audioMixer = new AudioMixer(device.getFormat());
+            try {
+                audioMixer.addSource(device.getInfo(), 1f);
+                audioMixer.addSource(second.getInfo(), 1f);
+                if(multi != null){
+                    multi.setAudioMixer(audioMixer);
+                }else{
+                    cAV.setAudioMixer(audioMixer);
+                }
+            } catch (LineUnavailableException ex) {
+                Logger.getLogger(MainFrame.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+        
+        if(miCursor.isSelected()){
+            if(multi != null){
+                for(CaptureAV capture : multi.getCaptures()){
+                    capture.addOverlay(new CursorOverlay());
+                }
+            }else{
+                cAV.addOverlay(new CursorOverlay());
+            }
+        }
+        
+        if(webcamSource != null){
+            // La webcam tourne sur son propre thread, la capture lit sa dernière image
+            if(webcamSource.equalsIgnoreCase("mire")){
+                webcam = WebcamOverlay.forTestPattern(WEBCAM_WIDTH, WEBCAM_HEIGHT);
+            }else if(new File(webcamSource).isFile()){
+                webcam = WebcamOverlay.forFile(new File(webcamSource), WEBCAM_WIDTH, WEBCAM_HEIGHT);
+            }else{
+                webcam = WebcamOverlay.forCamera(webcamSource, WEBCAM_WIDTH, WEBCAM_HEIGHT);
+            }
+            try {
+                webcam.start();
+                if(multi != null){
+                    multi.getCaptures().get(0).addOverlay(webcam);
+                }else{
+                    cAV.addOverlay(webcam);
+                }
+            } catch (FrameGrabber.Exception ex) {
+                Logger.getLogger(MainFrame.class.getName()).log(Level.SEVERE, null, ex);
+                webcam = null;
+            }
+        }
+        
+        return true;
+    }
+    
+    private void armCapture(){
+        // Encodeur, ligne audio et robot ouverts à l'avance, hors de l'EDT
+        if(cAV != null || multi != null) return;
+        if(!prepareCapture()) return;
+        
+        miArm.setEnabled(false);
+        btnSet.setEnabled(false);
+        btnQuit.setEnabled(false);
+        statsPanel.setState("Préparation...");
+        
+        CaptureAV capture = cAV;
+        MultiCapture captures = multi;
+        new Thread(() -> {
+            boolean ok = captures != null ? captures.arm() : capture.arm();
+            EventQueue.invokeLater(() -> {
+                // Arrêter une fois la préparation finie, jamais pendant
+                btnStop.setEnabled(true);
+                statsPanel.setState(ok ? "Prêt, l'enregistrement démarre à l'image près" : "Préparation impossible");
+            });
+        }, "Arm").start();
+    }
+
 
     private void btnStopActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_btnStopActionPerformed
         // Arrêter l'enregistrement
@@ -369,23 +923,78 @@ public class MainFrame extends javax.swing.JFrame {
 //            cVideo = null;
 //        }
         
-        if(cAV != null){
-            cAV.stopRecording();
+        // La fin de l'encodage se fait en arrière-plan, l'interface suit
+        // les étapes et ne se débloque qu'une fois le fichier complet
+        CompletableFuture<?> end;
+        Finalization progress;
+        if(multi != null){
+            progress = multi.getCaptures().get(0).getFinalization();
+            end = multi.stopRecording();
+            multi = null;
+        }else{
+            progress = cAV.getFinalization();
+            end = cAV.stopRecording();
             cAV = null;
         }
-
-        btnStart.setEnabled(true);
+        
+        if(webcam != null){
+            webcam.stop();
+            webcam = null;
+        }
+        
         btnStop.setEnabled(false);
-        btnSet.setEnabled(true);
-        btnQuit.setEnabled(true);
+        miReplaySave.setEnabled(false);
+        miPause.setEnabled(false);
+        statsPanel.setState("Finalisation...");
+        progress.onStage((stage) -> EventQueue.invokeLater(() -> {
+            statsPanel.setState("Finalisation : " + stageLabel(stage));
+        }));
         
-        JOptionPane.showMessageDialog(
-                this,
-                "Encodage fini !",
-                "Fin de process",
-                JOptionPane.INFORMATION_MESSAGE
-        );
+        end.whenComplete((result, ex) -> EventQueue.invokeLater(() -> {
+            statsPanel.setStats(null);
+            statsPanel.setState(null);
+
+            miReplayMode.setEnabled(true);
+            miStream.setEnabled(true);
+            miTimelapse.setEnabled(true);
+            miAllScreens.setEnabled(true);
+            miCursor.setEnabled(true);
+            miWebcam.setEnabled(true);
+            miSecondAudio.setEnabled(true);
+            mAudioCodec.setEnabled(true);
+
+            btnStart.setEnabled(true);
+            btnSet.setEnabled(true);
+            btnQuit.setEnabled(true);
+            miArm.setEnabled(true);
+            
+            if(ex != null){
+                JOptionPane.showMessageDialog(
+                        this,
+                        "Erreur pendant l'encodage : " + ex.getMessage(),
+                        "Fin de process",
+                        JOptionPane.ERROR_MESSAGE
+                );
+                return;
+            }
+            JOptionPane.showMessageDialog(
+                    this,
+                    "Encodage fini !",
+                    "Fin de process",
+                    JOptionPane.INFORMATION_MESSAGE
+            );
+        }));
     }//GEN-LAST:event_btnStopActionPerformed
+    
+    private static String stageLabel(Finalization.Stage stage){
+        return switch(stage){
+            case DRAINING -> "vidage des tampons";
+            case FLUSHING -> "vidage de l'encodeur";
+            case FINALIZING -> "écriture du fichier";
+            case RELEASING -> "libération des ressources";
+            case DONE -> "terminé";
+        };
+    }
 
     /**
      * @param args the command line arguments
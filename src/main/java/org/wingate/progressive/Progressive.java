@@ -2,6 +2,7 @@ package org.wingate.progressive;
 
 import com.formdev.flatlaf.FlatLightLaf;
 import java.awt.EventQueue;
+import org.wingate.progressive.core.Natives;
 
 /**
  *
@@ -10,6 +11,23 @@ import java.awt.EventQueue;
 public class Progressive {
 
     public static void main(String[] args) {        
+        // Before anything of AWT: Java2D doesn't scale, user space is the
+        // device and Robot reads the screen without resampling it, see
+        // ScreenSource. FlatLaf then scales the window itself, from the
+        // font size of the desktop. Left alone if given on the command line.
+        if(System.getProperty("sun.java2d.uiScale") == null
+                && System.getProperty("sun.java2d.uiScale.enabled") == null){
+            System.setProperty("sun.java2d.uiScale.enabled", "false");
+        }
+        
+        // With arguments, record from the command line, no Swing at all
+        if(args.length > 0){
+            System.exit(CommandLine.run(args));
+        }
+        
+        // FFmpeg is loaded while the window is being built
+        Natives.preload();
+        
         EventQueue.invokeLater(()->{
             FlatLightLaf.setup();
             MainFrame mf = new MainFrame();
@@ -18,18 +18,26 @@ package org.wingate.progressive;
 
 import java.awt.BasicStroke;
 import java.awt.Color;
-import java.awt.Dimension;
+import java.awt.DisplayMode;
 import java.awt.Font;
+import java.awt.FontMetrics;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.GraphicsDevice;
+import java.awt.GraphicsEnvironment;
 import java.awt.Point;
 import java.awt.Rectangle;
 import java.awt.Stroke;
-import java.awt.Toolkit;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseMotionAdapter;
 import java.awt.image.BufferedImage;
+import java.awt.image.VolatileImage;
+import java.util.ArrayList;
+import java.util.List;
+import javax.swing.JComponent;
+import javax.swing.Timer;
 import org.wingate.progressive.core.DrawColor;
 
 /**
@@ -43,36 +51,74 @@ public class SelectionFrame extends javax.swing.JFrame {
     
     private Point pressedInPoint = new Point();    
     private Point releasedInPoint = new Point();
+    
+    // Zones déjà validées avec Ctrl (plusieurs zones ou plusieurs écrans)
+    private final List<Rectangle> regions = new ArrayList<>();
+    
+    // Tous les écrans, dans les coordonnées du bureau virtuel
+    private final Rectangle desktop;
+    
+    // La capture d'écran est mise à l'échelle une seule fois, dans une image
+    // de la carte graphique, puis seule la zone qui change est redessinée
+    private final SelectionPane pane = new SelectionPane();
+    private VolatileImage background = null;
+    
+    private final static Stroke SELECTION_STROKE = new BasicStroke(2f);
+    private final static Color SELECTION_COLOR = Color.orange.darker();
+    private final static Color LABEL_COLOR = DrawColor.black.getColor(0.5f);
+    private final static Font LABEL_FONT = new Font(Font.DIALOG, Font.BOLD, 24);
+    private final int labelWidth;
+    private final static int LABEL_HEIGHT = 34;
+    
+    // Les mouvements de la souris sont regroupés, un seul dessin par image
+    // de l'écran
+    private Point pendingPoint = null;
+    private final Timer coalescer;
 
     /**
      * Creates new form SelectionFrame
      */
     public SelectionFrame() {
         initComponents();
+        setContentPane(pane);
         
         // On définit les instructions pour sortir de la fenêtre
         instructions = """
-                       Pour valider la sélection, faîtes un clic-droit avec la souris.
+                       Pour valider la sélection, faîtes un clic-droit avec la souris (Ctrl pour plusieurs zones).
                        """;
+        FontMetrics fm = getFontMetrics(LABEL_FONT);
+        labelWidth = Math.max(1000, fm.stringWidth(instructions.strip()) + 40);
         
-        // On cherche les dimensions de la résolution d'écran
-        Toolkit toolkit = Toolkit.getDefaultToolkit();
-        Dimension screenDimension = toolkit.getScreenSize();
+        // On couvre tous les écrans, pas seulement l'écran principal
+        desktop = getDesktopBounds();
         
-        // On définit la taille de la fenêtre en conséquence
-        setSize(screenDimension);
+        // On définit la taille et la position de la fenêtre en conséquence
+        setBounds(desktop);
         
-        // On définit le centrage (au centre)
-        setLocationRelativeTo(null);
+        coalescer = new Timer(1000 / getRefreshRate(), (evt) -> {
+            if(pendingPoint != null){
+                moveTo(pendingPoint);
+                pendingPoint = null;
+            }
+        });
+        coalescer.start();
         
         addMouseListener(new MouseAdapter(){
             @Override
             public void mousePressed(MouseEvent e) {
                 super.mousePressed(e);
                 if(e.getButton() == MouseEvent.BUTTON1){
+                    // Avec Ctrl, la zone en cours est gardée et on en commence une autre
+                    if(e.isControlDown() && pressedInPoint.equals(releasedInPoint) == false){
+                        regions.add(getCurrentRegion());
+                    }else if(!e.isControlDown()){
+                        regions.clear();
+                    }
                     pressedInPoint = e.getLocationOnScreen();
                     releasedInPoint = e.getLocationOnScreen();
-                    repaint();
+                    pendingPoint = null;
+                    // Rare : tout est redessiné
+                    pane.repaint();
                 }
             }
 
@@ -80,8 +126,8 @@ public class SelectionFrame extends javax.swing.JFrame {
             public void mouseReleased(MouseEvent e) {
                 super.mouseReleased(e);
                 if(e.getButton() == MouseEvent.BUTTON1){
-                    releasedInPoint = e.getLocationOnScreen();
-                    repaint();
+                    pendingPoint = null;
+                    moveTo(e.getLocationOnScreen());
                 }
             }
         });
@@ -90,79 +136,190 @@ public class SelectionFrame extends javax.swing.JFrame {
             @Override
             public void mouseMoved(MouseEvent e) {
                 super.mouseMoved(e);
-                releasedInPoint = e.getLocationOnScreen();
-                repaint();
+                // Dessiné au prochain rafraîchissement de l'écran
+                pendingPoint = e.getLocationOnScreen();
             }
             
         });
     }
-
+    
+    private static int getRefreshRate(){
+        DisplayMode mode = GraphicsEnvironment.getLocalGraphicsEnvironment()
+                .getDefaultScreenDevice().getDisplayMode();
+        int rate = mode.getRefreshRate();
+        return rate == DisplayMode.REFRESH_RATE_UNKNOWN ? 60 : rate;
+    }
+    
+    private void moveTo(Point p){
+        // On ne redessine que l'ancienne et la nouvelle sélection
+        Rectangle dirty = getDamage();
+        releasedInPoint = p;
+        dirty.add(getDamage());
+        repaintDesktop(dirty);
+    }
+    
+    private Rectangle getDamage(){
+        // La sélection avec l'épaisseur du trait, et l'étiquette
+        Rectangle damage = getCurrentRegion();
+        damage.grow(2, 2);
+        damage.add(new Rectangle(releasedInPoint.x, releasedInPoint.y, labelWidth, LABEL_HEIGHT));
+        return damage;
+    }
+    
+    private void repaintDesktop(Rectangle dirty){
+        if(!pane.isShowing()) return;
+        Point origin = pane.getLocationOnScreen();
+        pane.repaint(dirty.x - origin.x, dirty.y - origin.y, dirty.width + 1, dirty.height + 1);
+    }
+    
     @Override
-    public void paint(Graphics g) {
-        if(image != null){        
-            BufferedImage img = new BufferedImage(getWidth(), getHeight(), BufferedImage.TYPE_INT_ARGB);
+    public void dispose() {
+        coalescer.stop();
+        if(background != null){
+            background.flush();
+            background = null;
+        }
+        super.dispose();
+    }
+    
+    /**
+     * @return the union of all the screens, in virtual desktop coordinates
+     */
+    public static Rectangle getDesktopBounds(){
+        Rectangle bounds = null;
+        for(GraphicsDevice gd : GraphicsEnvironment.getLocalGraphicsEnvironment().getScreenDevices()){
+            Rectangle screen = gd.getDefaultConfiguration().getBounds();
+            bounds = bounds == null ? screen : bounds.union(screen);
+        }
+        return bounds;
+    }
+    
+    /**
+     * @return the bounds of each screen, in virtual desktop coordinates
+     */
+    public static List<Rectangle> getScreenBounds(){
+        List<Rectangle> screens = new ArrayList<>();
+        for(GraphicsDevice gd : GraphicsEnvironment.getLocalGraphicsEnvironment().getScreenDevices()){
+            screens.add(gd.getDefaultConfiguration().getBounds());
+        }
+        return screens;
+    }
 
-            Graphics2D g2d = img.createGraphics();
-            
-            g2d.drawImage(
-                    image,
-                    0,
-                    0,
-                    getWidth(),
-                    getHeight(),
-                    null
-            );
-            
-            Stroke oldStroke = g2d.getStroke();
+    private class SelectionPane extends JComponent {
 
-            g2d.setColor(Color.orange.darker());
-            g2d.setStroke(new BasicStroke(2f));
-            g2d.drawRect(
-                    pressedInPoint.x,
-                    pressedInPoint.y,
-                    releasedInPoint.x - pressedInPoint.x,
-                    releasedInPoint.y - pressedInPoint.y
-            );
+        public SelectionPane() {
+            // Tout est couvert, rien à dessiner dessous
+            setOpaque(true);
+        }
 
-            g2d.setStroke(oldStroke);
+        @Override
+        protected void paintComponent(Graphics g) {
+            if(image == null){
+                g.setColor(SelectionFrame.this.getBackground());
+                g.fillRect(0, 0, getWidth(), getHeight());
+                return;
+            }
+            Graphics2D g2d = (Graphics2D)g.create();
+            
+            // Les points sont sur le bureau virtuel, on dessine dans la fenêtre
+            Point origin = getLocationOnScreen();
+            drawBackground(g2d, origin);
+            g2d.translate(-origin.x, -origin.y);
+            
+            g2d.setColor(SELECTION_COLOR);
+            g2d.setStroke(SELECTION_STROKE);
+            Rectangle clip = g2d.getClipBounds();
+            for(Rectangle region : regions){
+                if(clip == null || clip.intersects(region)) g2d.draw(region);
+            }
+            g2d.draw(getCurrentRegion());
             
-            g2d.setColor(DrawColor.black.getColor(0.5f));
+            g2d.setColor(LABEL_COLOR);
             g2d.fillRect(
                     releasedInPoint.x,
                     releasedInPoint.y,
-                    700,
-                    34
+                    labelWidth,
+                    LABEL_HEIGHT
             );
             
             g2d.setColor(Color.yellow);
-            Font oldFont = g2d.getFont();
-            g2d.setFont(g2d.getFont().deriveFont(24f).deriveFont(Font.BOLD));
+            g2d.setFont(LABEL_FONT);
             g2d.drawString(
                     instructions,
                     releasedInPoint.x + 20,
                     releasedInPoint.y + 25
             );
-            g2d.setFont(oldFont);
             
             g2d.dispose();
-            
-            g.drawImage(img, 0, 0, null);
-        }else{
-            super.paint(g);
+        }
+        
+        private void drawBackground(Graphics2D g, Point origin){
+            // L'image de la carte graphique peut être perdue (changement de
+            // mode, écran verrouillé...), on la refait alors
+            GraphicsConfiguration gc = getGraphicsConfiguration();
+            do {
+                int state = background == null
+                        ? VolatileImage.IMAGE_INCOMPATIBLE
+                        : background.validate(gc);
+                if(state == VolatileImage.IMAGE_INCOMPATIBLE
+                        || background.getWidth() != getWidth()
+                        || background.getHeight() != getHeight()){
+                    if(background != null) background.flush();
+                    background = gc.createCompatibleVolatileImage(getWidth(), getHeight());
+                    state = VolatileImage.IMAGE_RESTORED;
+                }
+                if(state == VolatileImage.IMAGE_RESTORED){
+                    Graphics2D bg = background.createGraphics();
+                    bg.drawImage(
+                            image,
+                            desktop.x - origin.x,
+                            desktop.y - origin.y,
+                            desktop.width,
+                            desktop.height,
+                            null
+                    );
+                    bg.dispose();
+                }
+                // Seule la zone à redessiner est copiée
+                g.drawImage(background, 0, 0, null);
+            } while(background.contentsLost());
         }
     }
-
-    public Rectangle getSelectedRegion(){
+    
+    private Rectangle getCurrentRegion(){
+        // On accepte une sélection dans tous les sens
         return new Rectangle(
-                pressedInPoint.x,
-                pressedInPoint.y,
-                releasedInPoint.x - pressedInPoint.x,
-                releasedInPoint.y - pressedInPoint.y
+                Math.min(pressedInPoint.x, releasedInPoint.x),
+                Math.min(pressedInPoint.y, releasedInPoint.y),
+                Math.abs(releasedInPoint.x - pressedInPoint.x),
+                Math.abs(releasedInPoint.y - pressedInPoint.y)
         );
     }
 
+    public Rectangle getSelectedRegion(){
+        return getCurrentRegion();
+    }
+    
+    /**
+     * @return every region selected, the last one included
+     */
+    public List<Rectangle> getSelectedRegions(){
+        List<Rectangle> selected = new ArrayList<>(regions);
+        Rectangle current = getCurrentRegion();
+        if(current.isEmpty() == false){
+            selected.add(current);
+        }
+        return selected;
+    }
+
     public void setImage(BufferedImage image) {
         this.image = image;
+        // Remise à l'échelle au prochain dessin
+        if(background != null){
+            background.flush();
+            background = null;
+        }
+        pane.repaint();
     }
     
     /**
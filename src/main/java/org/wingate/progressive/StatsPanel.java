@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2023 util2
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.wingate.progressive;
+
+import java.awt.GridLayout;
+import java.util.EnumMap;
+import java.util.Map;
+import javax.swing.BorderFactory;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.Timer;
+import org.wingate.progressive.core.CaptureStats;
+import org.wingate.progressive.core.LatencyHistogram;
+
+/**
+ * Statistiques en direct de l'enregistrement : compteurs d'images et de son,
+ * et latences de chaque étape (médiane, 99e centile, maximum).
+ *
+ * @author util2
+ */
+public final class StatsPanel extends JPanel {
+
+    private final JLabel lblState = new JLabel(" ");
+    private final JLabel lblFrames = new JLabel();
+    private final JLabel lblAudio = new JLabel();
+    private final Map<CaptureStats.Stage, JLabel> lblStages = new EnumMap<>(CaptureStats.Stage.class);
+
+    // Deux rafraîchissements par seconde suffisent
+    private final Timer timer = new Timer(500, (evt) -> refresh());
+    private CaptureStats stats = null;
+
+    public StatsPanel() {
+        setBorder(BorderFactory.createTitledBorder("Statistiques"));
+        setLayout(new GridLayout(0, 1));
+        add(lblState);
+        add(lblFrames);
+        add(lblAudio);
+        for(CaptureStats.Stage stage : CaptureStats.Stage.values()){
+            JLabel lbl = new JLabel();
+            lblStages.put(stage, lbl);
+            add(lbl);
+        }
+        refresh();
+    }
+
+    /**
+     * @param stats les statistiques à suivre, null pour arrêter
+     */
+    public void setStats(CaptureStats stats){
+        this.stats = stats;
+        // Seulement les étapes que cet enregistrement traverse
+        for(Map.Entry<CaptureStats.Stage, JLabel> entry : lblStages.entrySet()){
+            entry.getValue().setVisible(stats == null || stats.getStages().contains(entry.getKey()));
+        }
+        if(stats != null){
+            timer.start();
+        }else{
+            timer.stop();
+        }
+        refresh();
+    }
+
+    /**
+     * @param state l'étape en cours (enregistrement, finalisation...), null
+     * pour effacer
+     */
+    public void setState(String state){
+        lblState.setText(state == null ? " " : state);
+    }
+
+    private void refresh(){
+        if(stats == null){
+            lblFrames.setText("Images : -");
+            lblAudio.setText("Son : -");
+            for(Map.Entry<CaptureStats.Stage, JLabel> entry : lblStages.entrySet()){
+                entry.getValue().setText(entry.getKey().name() + " : -");
+            }
+            return;
+        }
+
+        lblFrames.setText(String.format(
+                "Images : %d capturées, %d encodées, %d perdues, %d dupliquées, %.1f i/s",
+                stats.getFramesCaptured(),
+                stats.getFramesRecorded(),
+                stats.getFramesDropped(),
+                stats.getFramesDuplicated(),
+                stats.getEffectiveFps()
+        ));
+        lblAudio.setText(String.format(
+                "Son : %d blocs, %d sous-alimentations",
+                stats.getAudioChunks(),
+                stats.getAudioUnderruns()
+        ));
+        for(Map.Entry<CaptureStats.Stage, JLabel> entry : lblStages.entrySet()){
+            LatencyHistogram h = stats.getHistogram(entry.getKey());
+            entry.getValue().setText(String.format(
+                    "%s : médiane %.2f ms, 99%% %.2f ms, max %.2f ms (%d)",
+                    entry.getKey().name(),
+                    h.getPercentile(50) / 1000d,
+                    h.getPercentile(99) / 1000d,
+                    h.getMax() / 1000d,
+                    h.getCount()
+            ));
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2023 util2
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.wingate.progressive.bench;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+
+/**
+ * A clock running a given number of times faster than the real one, so
+ * that hours of recording go by in minutes.
+ *
+ * @author util2
+ */
+public class AcceleratedClock extends Clock {
+
+    private final double speed;
+    private final long originMillis = System.currentTimeMillis();
+    private final long originNanos = System.nanoTime();
+
+    /**
+     * @param speed simulated seconds per real second
+     */
+    public AcceleratedClock(double speed) {
+        this.speed = speed;
+    }
+
+    public double getSpeed() {
+        return speed;
+    }
+
+    /**
+     * @return the simulated milliseconds since this clock was created
+     */
+    public long elapsedMillis(){
+        return (long) ((System.nanoTime() - originNanos) * speed / 1_000_000L);
+    }
+
+    /**
+     * @param millis a simulated duration
+     * @return the real nanoseconds it takes
+     */
+    public long toRealNanos(long millis){
+        return (long) (millis * 1_000_000L / speed);
+    }
+
+    @Override
+    public long millis() {
+        return originMillis + elapsedMillis();
+    }
+
+    @Override
+    public Instant instant() {
+        return Instant.ofEpochMilli(millis());
+    }
+
+    @Override
+    public ZoneId getZone() {
+        return ZoneOffset.UTC;
+    }
+
+    @Override
+    public Clock withZone(ZoneId zone) {
+        return this;
+    }
+}
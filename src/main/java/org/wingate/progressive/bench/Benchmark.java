@@ -0,0 +1,330 @@
+/*
+ * Copyright (C) 2023 util2
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.wingate.progressive.bench;
+
+import java.awt.GraphicsEnvironment;
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import javax.sound.sampled.AudioFormat;
+import org.wingate.progressive.core.Calibration;
+import org.wingate.progressive.core.CaptureAV;
+import org.wingate.progressive.core.CaptureStats;
+import org.wingate.progressive.core.LatencyHistogram;
+import org.wingate.progressive.core.Natives;
+import org.wingate.progressive.core.SeekIndex;
+
+/**
+ * End-to-end throughput of the recording engine: the whole {@link CaptureAV}
+ * with the real encoder and muxer, over a matrix of sizes, frame rates and
+ * presets. The screen is a {@link SyntheticScreen}, or the real one (a
+ * display or Xvfb), the audio a {@link SyntheticLine}. For each cell,
+ * after a short settling time, it measures:
+ * <ul>
+ * <li>the frame rate achieved, the frames dropped and duplicated,</li>
+ * <li>the latency from the grabbed image to its packet in the file,</li>
+ * <li>the CPU time of the process per frame recorded (the synthetic screen
+ * drawing included),</li>
+ * <li>the Java allocation rate (FFmpeg allocates off heap, not counted),</li>
+ * <li>the bitrate of the file, audio included.</li>
+ * </ul>
+ * Results go to prefix.json and prefix.csv, to compare releases and pick
+ * the settings of a machine:
+ * <pre>
+ * java -cp progressive.jar org.wingate.progressive.bench.Benchmark --label 1.2 --sizes 1280x720,1920x1080
+ * </pre>
+ *
+ * @author util2
+ */
+public class Benchmark {
+
+    private final static String USAGE = """
+            Usage: Benchmark [options]
+              --sizes <wxh,...>     frame sizes (1280x720,1920x1080)
+              --fps <n,...>         frame rates (25,60)
+              --presets <name,...>  encoder presets (ultrafast,veryfast)
+              --seconds <s>         measured time per cell (10)
+              --format <mkv|mp4>    container (mkv)
+              --audio <true|false>  record a synthetic line too (true)
+              --screen <synthetic|real>  where the frames come from (synthetic)
+              --label <name>        release or machine name, in the report
+              --dir <folder>        where the recordings go (temporary)
+              --report <prefix>     report files, prefix.json and prefix.csv (bench)
+              --keep                keep the recordings
+            """;
+
+    // Left out of the measures: encoder start, first keyframe, JIT
+    private final static long SETTLE_MILLIS = 2000;
+    private final static long WARMUP_MILLIS = 3000;
+    private final static AudioFormat AUDIO_FORMAT = new AudioFormat(48000f, 16, 2, true, false);
+    // Below this share of the frame rate, a cell doesn't keep up
+    private final static double REALTIME_FRACTION = 0.95;
+
+    private final static String CSV_HEADER = "width,height,fps,preset,achievedFps,realtime,framesDropped,framesDuplicated,"
+            + "latencyP50Micros,latencyP99Micros,latencyMaxMicros,encodeP50Micros,encodeP99Micros,"
+            + "cpuMillisPerFrame,allocBytesPerSecond,allocBytesPerFrame,bitrateKbps,audioLostFrames";
+
+    private final List<int[]> sizes = new ArrayList<>(List.of(new int[]{ 1280, 720 }, new int[]{ 1920, 1080 }));
+    private final List<Integer> rates = new ArrayList<>(List.of(25, 60));
+    private final List<String> presets = new ArrayList<>(List.of("ultrafast", "veryfast"));
+    private double seconds = 10;
+    private String format = "mkv";
+    private boolean audio = true;
+    private boolean realScreen = false;
+    private String label = null;
+    private File dir = null;
+    private String report = "bench";
+    private boolean keep = false;
+
+    private static class Result {
+        int width, height, fps;
+        String preset;
+        double achievedFps;
+        long dropped, duplicated;
+        long latencyP50, latencyP99, latencyMax, encodeP50, encodeP99;
+        double cpuMillisPerFrame, allocPerSecond, allocPerFrame, bitrateKbps;
+        long audioLost;
+
+        boolean isRealtime(){
+            return achievedFps >= fps * REALTIME_FRACTION;
+        }
+
+        String toCsv(){
+            return String.format(Locale.ROOT, "%d,%d,%d,%s,%.2f,%b,%d,%d,%d,%d,%d,%d,%d,%.3f,%.0f,%.0f,%.1f,%d",
+                    width, height, fps, preset, achievedFps, isRealtime(), dropped, duplicated,
+                    latencyP50, latencyP99, latencyMax, encodeP50, encodeP99,
+                    cpuMillisPerFrame, allocPerSecond, allocPerFrame, bitrateKbps, audioLost);
+        }
+
+        String toJson(){
+            return String.format(Locale.ROOT, "{\"width\":%d,\"height\":%d,\"fps\":%d,\"preset\":\"%s\","
+                    + "\"achievedFps\":%.2f,\"realtime\":%b,\"framesDropped\":%d,\"framesDuplicated\":%d,"
+                    + "\"latencyMicros\":{\"p50\":%d,\"p99\":%d,\"max\":%d},"
+                    + "\"encodeMicros\":{\"p50\":%d,\"p99\":%d},"
+                    + "\"cpuMillisPerFrame\":%.3f,\"allocBytesPerSecond\":%.0f,\"allocBytesPerFrame\":%.0f,"
+                    + "\"bitrateKbps\":%.1f,\"audioLostFrames\":%d}",
+                    width, height, fps, preset, achievedFps, isRealtime(), dropped, duplicated,
+                    latencyP50, latencyP99, latencyMax, encodeP50, encodeP99,
+                    cpuMillisPerFrame, allocPerSecond, allocPerFrame, bitrateKbps, audioLost);
+        }
+    }
+
+    public Benchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        Benchmark bench = new Benchmark();
+        try {
+            bench.parse(args);
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            System.err.print(USAGE);
+            System.exit(2);
+        }
+        if(!bench.realScreen){
+            System.setProperty("java.awt.headless", "true");
+        }else if(GraphicsEnvironment.isHeadless()){
+            System.err.println("No display for --screen real, start Xvfb and set DISPLAY");
+            System.exit(2);
+        }
+        bench.run();
+    }
+
+    private void parse(String[] args){
+        for(int i=0; i<args.length; i++){
+            String arg = args[i];
+            if(arg.equals("--keep")){
+                keep = true;
+                continue;
+            }
+            if(i + 1 >= args.length) throw new IllegalArgumentException("Missing value: " + arg);
+            String v = args[++i];
+            switch(arg){
+                case "--sizes" -> {
+                    sizes.clear();
+                    for(String size : v.split(",")){
+                        String[] wh = size.trim().split("x");
+                        if(wh.length != 2) throw new IllegalArgumentException("Size must be wxh: " + size);
+                        sizes.add(new int[]{ Integer.parseInt(wh[0]), Integer.parseInt(wh[1]) });
+                    }
+                }
+                case "--fps" -> {
+                    rates.clear();
+                    for(String fps : v.split(",")){
+                        rates.add(Integer.valueOf(fps.trim()));
+                    }
+                }
+                case "--presets" -> {
+                    presets.clear();
+                    for(String preset : v.split(",")){
+                        presets.add(preset.trim());
+                    }
+                }
+                case "--seconds" -> seconds = Double.parseDouble(v);
+                case "--format" -> format = v;
+                case "--audio" -> audio = Boolean.parseBoolean(v);
+                case "--screen" -> realScreen = v.equals("real");
+                case "--label" -> label = v;
+                case "--dir" -> dir = new File(v);
+                case "--report" -> report = v;
+                default -> throw new IllegalArgumentException("Invalid argument: " + arg);
+            }
+        }
+    }
+
+    private void run() throws IOException, InterruptedException, ExecutionException {
+        if(dir == null){
+            dir = Files.createTempDirectory("bench").toFile();
+        }
+        Natives.load();
+
+        System.out.println("Warm-up...");
+        int[] first = sizes.get(0);
+        cell(first[0], first[1], rates.get(0), presets.get(0), WARMUP_MILLIS, false);
+
+        List<Result> results = new ArrayList<>();
+        for(int[] size : sizes){
+            for(int fps : rates){
+                for(String preset : presets){
+                    Result result = cell(size[0], size[1], fps, preset, (long) (seconds * 1000), true);
+                    System.out.printf(Locale.ROOT, "%dx%d %d fps %s: %.1f fps, latency p50 %.1f ms p99 %.1f ms, %.2f ms CPU/frame, %.0f kb/s%n",
+                            size[0], size[1], fps, preset, result.achievedFps,
+                            result.latencyP50 / 1000.0, result.latencyP99 / 1000.0,
+                            result.cpuMillisPerFrame, result.bitrateKbps);
+                    results.add(result);
+                }
+            }
+        }
+        write(results);
+    }
+
+    private Result cell(int width, int height, int fps, String preset, long millis, boolean measured)
+            throws InterruptedException, ExecutionException {
+        AcceleratedClock clock = new AcceleratedClock(1);
+        SyntheticLine line = audio ? new SyntheticLine(clock, AUDIO_FORMAT) : null;
+        File media = new File(dir, String.format("bench-%dx%d-%d-%s.%s", width, height, fps, preset, format));
+
+        CaptureAV capture = new CaptureAV(media, new Rectangle(0, 0, width, height), null);
+        capture.setFrameRate(fps);
+        capture.setPreset(preset);
+        capture.setClock(clock);
+        if(!realScreen){
+            capture.setFrameSource(new SyntheticScreen(clock, fps));
+        }
+        if(line != null){
+            capture.setAudioLine(line);
+        }
+        capture.startRecording();
+        Thread.sleep(SETTLE_MILLIS);
+
+        // The window measured starts here
+        CaptureStats s = capture.getStats();
+        for(CaptureStats.Stage stage : CaptureStats.Stage.values()){
+            s.getHistogram(stage).reset();
+        }
+        long frames0 = s.getFramesRecorded();
+        long dropped0 = s.getFramesDropped();
+        long duplicated0 = s.getFramesDuplicated();
+        long cpu0 = processCpuNanos();
+        long alloc0 = allocatedBytes();
+        long t0 = System.nanoTime();
+
+        Thread.sleep(millis);
+
+        long elapsed = System.nanoTime() - t0;
+        long cpu = processCpuNanos() - cpu0;
+        long alloc = allocatedBytes() - alloc0;
+        long frames = s.getFramesRecorded() - frames0;
+        Result result = new Result();
+        result.width = width;
+        result.height = height;
+        result.fps = fps;
+        result.preset = preset;
+        result.achievedFps = frames * 1e9 / elapsed;
+        result.dropped = s.getFramesDropped() - dropped0;
+        result.duplicated = s.getFramesDuplicated() - duplicated0;
+        LatencyHistogram total = s.getHistogram(CaptureStats.Stage.TOTAL);
+        result.latencyP50 = total.getPercentile(50);
+        result.latencyP99 = total.getPercentile(99);
+        result.latencyMax = total.getMax();
+        LatencyHistogram encode = s.getHistogram(CaptureStats.Stage.ENCODE);
+        result.encodeP50 = encode.getPercentile(50);
+        result.encodeP99 = encode.getPercentile(99);
+        result.cpuMillisPerFrame = frames == 0 ? 0 : cpu / 1e6 / frames;
+        result.allocPerSecond = alloc * 1e9 / elapsed;
+        result.allocPerFrame = frames == 0 ? 0 : alloc / (double) frames;
+
+        capture.stopRecording().get();
+        // Over the whole file: the frames at the frame rate, audio included
+        long recorded = s.getFramesRecorded();
+        result.bitrateKbps = recorded == 0 ? 0 : media.length() * 8.0 * fps / recorded / 1000;
+        result.audioLost = line == null ? 0 : line.getLostFrames();
+
+        if(!keep || !measured){
+            media.delete();
+            SeekIndex.sidecarOf(media).delete();
+        }
+        return result;
+    }
+
+    private static long processCpuNanos(){
+        return ((com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean()).getProcessCpuTime();
+    }
+
+    private static long allocatedBytes(){
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getTotalThreadAllocatedBytes();
+    }
+
+    private void write(List<Result> results) throws IOException {
+        try (PrintWriter csv = new PrintWriter(report + ".csv")) {
+            csv.println(CSV_HEADER);
+            for(Result result : results){
+                csv.println(result.toCsv());
+            }
+        }
+
+        StringBuilder sb = new StringBuilder("{");
+        sb.append("\"label\":").append(label == null ? "null" : "\"" + escape(label) + "\"")
+                .append(",\"date\":\"").append(Instant.now()).append('"')
+                .append(",\"machine\":\"").append(escape(Calibration.fingerprint())).append('"')
+                .append(",\"cores\":").append(Runtime.getRuntime().availableProcessors())
+                .append(",\"screen\":\"").append(realScreen ? "real" : "synthetic").append('"')
+                .append(",\"audio\":").append(audio)
+                .append(",\"format\":\"").append(escape(format)).append('"')
+                .append(String.format(Locale.ROOT, ",\"seconds\":%.1f", seconds))
+                .append(",\"results\":[");
+        for(int i=0; i<results.size(); i++){
+            if(i > 0) sb.append(',');
+            sb.append("\n  ").append(results.get(i).toJson());
+        }
+        sb.append("\n]}\n");
+        Files.writeString(new File(report + ".json").toPath(), sb);
+        System.out.println("Report: " + report + ".json, " + report + ".csv");
+    }
+
+    private static String escape(String s){
+        return s.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+}
@@ -0,0 +1,354 @@
+/*
+ * Copyright (C) 2023 util2
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.wingate.progressive.bench;
+
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import javax.sound.sampled.AudioFormat;
+import org.bytedeco.ffmpeg.avcodec.AVPacket;
+import org.bytedeco.ffmpeg.avformat.AVFormatContext;
+import org.bytedeco.ffmpeg.global.avcodec;
+import org.bytedeco.ffmpeg.global.avutil;
+import static org.bytedeco.ffmpeg.global.avutil.av_q2d;
+import org.bytedeco.javacpp.Pointer;
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+import org.wingate.progressive.core.CaptureAV;
+import org.wingate.progressive.core.CaptureStats;
+import org.wingate.progressive.core.Natives;
+import org.wingate.progressive.core.SeekIndex;
+
+/**
+ * Endurance run of the recording engine, without display nor sound card:
+ * a {@link SyntheticScreen} and a {@link SyntheticLine} on an
+ * {@link AcceleratedClock}, for hours of simulated time. Every simulated
+ * minute it samples the heap (after a GC), the native memory (resident and
+ * JavaCPP), the threads and the A/V drift, and at the end it checks that:
+ * <ul>
+ * <li>heap and native memory stay flat,</li>
+ * <li>no thread is left behind by a session,</li>
+ * <li>no audio is lost, and the audio recorded keeps up with the frames:
+ * the gap between both moves by less than one audio tick,</li>
+ * <li>the file holds everything that was recorded.</li>
+ * </ul>
+ * The samples go to soak.csv and the verdict to soak.txt. Run with
+ * <pre>
+ * java -cp progressive.jar org.wingate.progressive.bench.Soak --hours 6 --speed 8
+ * </pre>
+ *
+ * @author util2
+ */
+public class Soak {
+
+    private final static String USAGE = """
+            Usage: Soak [options]
+              --hours <h>        simulated recording time (6)
+              --speed <x>        simulated seconds per real second (4)
+              --sessions <n>     recordings one after the other (1)
+              --size <w>x<h>     frame size (640x360)
+              --fps <n>          frames per second (25)
+              --sample <s>       simulated seconds between samples (60)
+              --dir <folder>     where the recordings go (temporary)
+              --report <prefix>  report files, prefix.csv and prefix.txt (soak)
+              --keep             keep the recordings
+            """;
+
+    // Above these, the run fails
+    private final static long HEAP_GROWTH_BYTES = 16L << 20;
+    private final static long NATIVE_GROWTH_BYTES = 64L << 20;
+    private final static long DRIFT_MILLIS = 250;
+    // A simulated warm-up before the baseline: classes, JIT, JavaCPP threads
+    private final static long WARMUP_MILLIS = 10_000;
+    // The first samples are left out of the slopes
+    private final static double SETTLE_FRACTION = 0.1;
+
+    private double hours = 6;
+    private double speed = 4;
+    private int sessions = 1;
+    private int width = 640, height = 360;
+    private int fps = 25;
+    private long sampleMillis = 60_000;
+    private File dir = null;
+    private String report = "soak";
+    private boolean keep = false;
+
+    private final List<String> failures = new ArrayList<>();
+    private final List<double[]> samples = new ArrayList<>();
+    private PrintWriter csv;
+
+    public Soak() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("java.awt.headless", "true");
+        Soak soak = new Soak();
+        try {
+            soak.parse(args);
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            System.err.print(USAGE);
+            System.exit(2);
+        }
+        System.exit(soak.run() ? 0 : 1);
+    }
+
+    private void parse(String[] args){
+        for(int i=0; i<args.length; i++){
+            String arg = args[i];
+            if(arg.equals("--keep")){
+                keep = true;
+                continue;
+            }
+            if(i + 1 >= args.length) throw new IllegalArgumentException("Missing value: " + arg);
+            String v = args[++i];
+            switch(arg){
+                case "--hours" -> hours = Double.parseDouble(v);
+                case "--speed" -> speed = Double.parseDouble(v);
+                case "--sessions" -> sessions = Integer.parseInt(v);
+                case "--size" -> {
+                    String[] wh = v.split("x");
+                    width = Integer.parseInt(wh[0]);
+                    height = Integer.parseInt(wh[1]);
+                }
+                case "--fps" -> fps = Integer.parseInt(v);
+                case "--sample" -> sampleMillis = (long) (Double.parseDouble(v) * 1000);
+                case "--dir" -> dir = new File(v);
+                case "--report" -> report = v;
+                default -> throw new IllegalArgumentException("Invalid argument: " + arg);
+            }
+        }
+    }
+
+    private boolean run() throws IOException, InterruptedException, ExecutionException {
+        if(dir == null){
+            dir = Files.createTempDirectory("soak").toFile();
+        }
+        Natives.load();
+
+        System.out.println("Warm-up...");
+        session(0, WARMUP_MILLIS, false);
+        int baseThreads = threads();
+
+        long sessionMillis = (long) (hours * 3_600_000L / sessions);
+        try (PrintWriter out = new PrintWriter(report + ".csv")) {
+            csv = out;
+            csv.println("session,simSeconds,realSeconds,heapBytes,physicalBytes,javacppBytes,threads,fps,framesDropped,framesDuplicated,avDriftMillis,audioLostFrames");
+            for(int n=1; n<=sessions; n++){
+                System.out.printf("Session %d: %.2f h at %.1fx%n", n, sessionMillis / 3_600_000.0, speed);
+                session(n, sessionMillis, true);
+                // Everything a session starts must end with it
+                int left = threads();
+                if(left > baseThreads){
+                    failures.add(String.format("session %d left %d thread(s) behind: %d, baseline %d",
+                            n, left - baseThreads, left, baseThreads));
+                }
+            }
+        }
+
+        checkFlat("heap", 3, HEAP_GROWTH_BYTES);
+        checkFlat("physical memory", 4, NATIVE_GROWTH_BYTES);
+        checkFlat("JavaCPP memory", 5, NATIVE_GROWTH_BYTES);
+        return writeVerdict();
+    }
+
+    private void session(int n, long durationMillis, boolean measured) throws InterruptedException, ExecutionException {
+        AcceleratedClock clock = new AcceleratedClock(speed);
+        SyntheticScreen screen = new SyntheticScreen(clock, fps);
+        SyntheticLine line = new SyntheticLine(clock, new AudioFormat(48000f, 16, 2, true, false));
+        File media = new File(dir, "soak-" + n + ".mkv");
+
+        CaptureAV capture = new CaptureAV(media, new Rectangle(0, 0, width, height), null);
+        capture.setFrameRate(fps);
+        capture.setClock(clock);
+        capture.setFrameSource(screen);
+        capture.setAudioLine(line);
+        capture.startRecording();
+        long start = clock.elapsedMillis();
+        long realStart = System.nanoTime();
+
+        long next = start + sampleMillis;
+        Long firstGap = null;
+        long maxDrift = 0;
+        while(clock.elapsedMillis() - start < durationMillis && !capture.isFinished()){
+            long wait = Math.min(next, start + durationMillis) - clock.elapsedMillis();
+            if(wait > 0 && capture.awaitTermination(clock.toRealNanos(wait), TimeUnit.NANOSECONDS)) break;
+            if(measured && clock.elapsedMillis() >= next && screen.getFirstMillis() >= 0){
+                // Video recorded minus audio recorded: the start offset and
+                // what the audio tick hasn't read yet, constant unless drifting
+                long gap = (screen.getLastMillis() - screen.getFirstMillis()) - line.getDeliveredFrames() * 1000 / 48000;
+                if(firstGap == null) firstGap = gap;
+                maxDrift = Math.max(maxDrift, Math.abs(gap - firstGap));
+                sample(n, clock, realStart, capture, gap - firstGap, line);
+                next += sampleMillis;
+            }
+        }
+        capture.stopRecording().get();
+        if(!measured){
+            // Cold start, only there to warm up
+            media.delete();
+            SeekIndex.sidecarOf(media).delete();
+            return;
+        }
+
+        // The audio is read once per frame period of real time
+        long tolerance = DRIFT_MILLIS + (long) (speed * 1000 / fps);
+        if(maxDrift > tolerance){
+            failures.add(String.format("session %d drifts by %d ms (allowed %d ms)", n, maxDrift, tolerance));
+        }
+
+        long lost = line.getLostFrames();
+        if(lost > 0){
+            failures.add(String.format("session %d lost %d audio frames (%.1f ms)", n, lost, lost * 1000.0 / 48000));
+        }
+        checkDurations(n, media, screen.getLastMillis() - screen.getFirstMillis() + 1000 / fps,
+                line.getDeliveredFrames() * 1000 / 48000);
+        if(!keep){
+            media.delete();
+            SeekIndex.sidecarOf(media).delete();
+        }
+    }
+
+    private void sample(int n, AcceleratedClock clock, long realStart, CaptureAV capture,
+            long drift, SyntheticLine line){
+        System.gc();
+        CaptureStats s = capture.getStats();
+        double[] sample = {
+            n,
+            clock.elapsedMillis() / 1000.0,
+            (System.nanoTime() - realStart) / 1e9,
+            ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed(),
+            Pointer.physicalBytes(),
+            Pointer.totalBytes(),
+            threads(),
+            s.getEffectiveFps(),
+            s.getFramesDropped(),
+            s.getFramesDuplicated(),
+            drift,
+            line.getLostFrames()
+        };
+        samples.add(sample);
+        StringBuilder sb = new StringBuilder();
+        for(double d : sample){
+            if(sb.length() > 0) sb.append(',');
+            sb.append(d == Math.rint(d) ? Long.toString((long) d) : String.format(Locale.ROOT, "%.2f", d));
+        }
+        csv.println(sb);
+        csv.flush();
+        System.out.printf("  %.0f s: heap %d MB, native %d MB, %d threads, %.1f fps%n",
+                sample[1], (long) sample[3] >> 20, (long) sample[4] >> 20, (int) sample[6], sample[7]);
+    }
+
+    private static int threads(){
+        return Thread.getAllStackTraces().size();
+    }
+
+    /**
+     * Fits a line through the samples after the settling time, and fails if
+     * it grows more than allowed over the run.
+     */
+    private void checkFlat(String name, int column, long maxGrowth){
+        int from = (int) (samples.size() * SETTLE_FRACTION);
+        int count = samples.size() - from;
+        if(count < 3){
+            failures.add("not enough samples to check the " + name);
+            return;
+        }
+        double sx = 0, sy = 0, sxx = 0, sxy = 0;
+        for(int i=from; i<samples.size(); i++){
+            double x = samples.get(i)[1], y = samples.get(i)[column];
+            sx += x;
+            sy += y;
+            sxx += x * x;
+            sxy += x * y;
+        }
+        double slope = (count * sxy - sx * sy) / (count * sxx - sx * sx);
+        double span = samples.get(samples.size() - 1)[1] - samples.get(from)[1];
+        double growth = slope * span;
+        System.out.printf("%s: %+.1f MB over %.1f h%n", name, growth / (1 << 20), span / 3600);
+        if(growth > maxGrowth){
+            failures.add(String.format("%s grows by %.1f MB over %.1f h", name, growth / (1 << 20), span / 3600));
+        }
+    }
+
+    /**
+     * @param videoMillis the length of the frames given
+     * @param audioMillis the length of the audio read
+     */
+    private void checkDurations(int n, File media, long videoMillis, long audioMillis){
+        // Packets only, nothing is decoded: from the first packet of each
+        // track to the end of its last one (the muxer tags are not exact)
+        avutil.av_log_set_level(avutil.AV_LOG_ERROR);
+        try (FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(media)) {
+            grabber.start();
+            AVFormatContext oc = grabber.getFormatContext();
+            long[] first = { -1, -1 }, end = { 0, 0 };
+            AVPacket packet;
+            while((packet = grabber.grabPacket()) != null){
+                int i = packet.stream_index();
+                if(i <= 1){
+                    if(first[i] < 0) first[i] = packet.pts();
+                    end[i] = packet.pts() + packet.duration();
+                }
+                // grabPacket() leaves the data to the caller
+                avcodec.av_packet_unref(packet);
+            }
+            double[] seconds = new double[2];
+            for(int i=0; i<oc.nb_streams() && i<2; i++){
+                seconds[i] = (end[i] - first[i]) * av_q2d(oc.streams(i).time_base());
+            }
+            grabber.stop();
+            System.out.printf("Recorded: video %.1f s, audio %.1f s%n", seconds[0], seconds[1]);
+            // Whatever the capture took must be in the file
+            if(Math.abs(seconds[0] * 1000 - videoMillis) > DRIFT_MILLIS){
+                failures.add(String.format("session %d: %.1f s of video in the file, %.1f s given",
+                        n, seconds[0], videoMillis / 1000.0));
+            }
+            if(Math.abs(seconds[1] * 1000 - audioMillis) > DRIFT_MILLIS){
+                failures.add(String.format("session %d: %.1f s of audio in the file, %.1f s read",
+                        n, seconds[1], audioMillis / 1000.0));
+            }
+        } catch (IOException ex) {
+            failures.add("session " + n + ": unreadable recording, " + ex);
+        }
+    }
+
+    private boolean writeVerdict() throws IOException {
+        try (PrintWriter out = new PrintWriter(report + ".txt")) {
+            out.printf("Soak: %d session(s), %.2f h simulated at %.1fx, %dx%d at %d fps%n",
+                    sessions, hours, speed, width, height, fps);
+            out.println("Samples: " + report + ".csv");
+            if(failures.isEmpty()){
+                out.println("PASS");
+            }else{
+                out.println("FAIL");
+                for(String failure : failures){
+                    out.println("  " + failure);
+                }
+            }
+        }
+        System.out.print(Files.readString(new File(report + ".txt").toPath()));
+        return failures.isEmpty();
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2023 util2
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.wingate.progressive.bench;
+
+import java.util.concurrent.locks.LockSupport;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.Control;
+import javax.sound.sampled.DataLine;
+import javax.sound.sampled.Line;
+import javax.sound.sampled.LineListener;
+import javax.sound.sampled.TargetDataLine;
+
+/**
+ * A capture line that needs no sound card: a 440 Hz tone, produced at the
+ * rate of the clock while started. Like a real line it keeps one second,
+ * what isn't read in time is lost and counted.
+ *
+ * @author util2
+ */
+public class SyntheticLine implements TargetDataLine {
+
+    private final AcceleratedClock clock;
+    private final AudioFormat format;
+    private final int frameSize;
+    private final long bufferFrames;
+
+    private boolean open = false;
+    private volatile boolean running = false;
+    // Frames produced before the last start, and when it started
+    private long producedBefore = 0;
+    private long startMillis = 0;
+    private long readFrames = 0;
+    private volatile long deliveredFrames = 0;
+    private volatile long lostFrames = 0;
+
+    /**
+     * @param clock the clock of the recording
+     * @param format 16 bits signed little endian
+     */
+    public SyntheticLine(AcceleratedClock clock, AudioFormat format) {
+        this.clock = clock;
+        this.format = format;
+        this.frameSize = format.getFrameSize();
+        this.bufferFrames = (long) format.getSampleRate();
+    }
+
+    private synchronized long produced(){
+        if(!running) return producedBefore;
+        return producedBefore + (clock.elapsedMillis() - startMillis) * (long) format.getSampleRate() / 1000;
+    }
+
+    private synchronized long due(){
+        long due = produced() - readFrames;
+        if(due > bufferFrames){
+            // Overrun: the oldest frames are gone
+            lostFrames += due - bufferFrames;
+            readFrames += due - bufferFrames;
+            due = bufferFrames;
+        }
+        return due;
+    }
+
+    /**
+     * @return the frames read so far
+     */
+    public long getDeliveredFrames() {
+        return deliveredFrames;
+    }
+
+    /**
+     * @return the frames produced but never read, overruns and flushes
+     */
+    public long getLostFrames() {
+        return lostFrames;
+    }
+
+    @Override
+    public void open(AudioFormat format, int bufferSize) {
+        open = true;
+    }
+
+    @Override
+    public void open(AudioFormat format) {
+        open = true;
+    }
+
+    @Override
+    public void open() {
+        open = true;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+        int frames = len / frameSize;
+        long due;
+        // Blocks until the frames asked for are there, like a real line
+        while((due = due()) < frames && running){
+            LockSupport.parkNanos(clock.toRealNanos(1 + (frames - due) * 1000 / (long) format.getSampleRate()));
+        }
+        int n = (int) Math.min(frames, due);
+        int channels = format.getChannels();
+        double rate = format.getSampleRate();
+        int i = off;
+        for(int f=0; f<n; f++){
+            short s = (short) (8000 * Math.sin(2 * Math.PI * 440 * ((readFrames + f) / rate)));
+            for(int c=0; c<channels; c++){
+                b[i++] = (byte) s;
+                b[i++] = (byte) (s >> 8);
+            }
+        }
+        synchronized(this){
+            readFrames += n;
+        }
+        deliveredFrames += n;
+        return n * frameSize;
+    }
+
+    @Override
+    public synchronized void drain() {
+    }
+
+    @Override
+    public synchronized void flush() {
+        long due = due();
+        lostFrames += due;
+        readFrames += due;
+    }
+
+    @Override
+    public synchronized void start() {
+        if(running) return;
+        startMillis = clock.elapsedMillis();
+        running = true;
+    }
+
+    @Override
+    public synchronized void stop() {
+        if(!running) return;
+        producedBefore = produced();
+        running = false;
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public boolean isActive() {
+        return running;
+    }
+
+    @Override
+    public AudioFormat getFormat() {
+        return format;
+    }
+
+    @Override
+    public int getBufferSize() {
+        return (int) bufferFrames * frameSize;
+    }
+
+    @Override
+    public int available() {
+        return (int) due() * frameSize;
+    }
+
+    @Override
+    public int getFramePosition() {
+        return (int) deliveredFrames;
+    }
+
+    @Override
+    public long getLongFramePosition() {
+        return deliveredFrames;
+    }
+
+    @Override
+    public long getMicrosecondPosition() {
+        return deliveredFrames * 1_000_000L / (long) format.getSampleRate();
+    }
+
+    @Override
+    public float getLevel() {
+        return AudioSystem.NOT_SPECIFIED;
+    }
+
+    @Override
+    public Line.Info getLineInfo() {
+        return new DataLine.Info(TargetDataLine.class, format);
+    }
+
+    @Override
+    public void close() {
+        stop();
+        open = false;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public Control[] getControls() {
+        return new Control[0];
+    }
+
+    @Override
+    public boolean isControlSupported(Control.Type control) {
+        return false;
+    }
+
+    @Override
+    public Control getControl(Control.Type control) {
+        throw new IllegalArgumentException("No control: " + control);
+    }
+
+    @Override
+    public void addLineListener(LineListener listener) {
+    }
+
+    @Override
+    public void removeLineListener(LineListener listener) {
+    }
+}
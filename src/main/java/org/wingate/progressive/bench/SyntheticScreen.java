@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2023 util2
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.wingate.progressive.bench;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.locks.LockSupport;
+import org.wingate.progressive.core.FrameSource;
+
+/**
+ * A screen that needs no display: a moving bar and a frame counter, given
+ * at the frame rate of the clock, as a robot would.
+ *
+ * @author util2
+ */
+public class SyntheticScreen implements FrameSource {
+
+    private final AcceleratedClock clock;
+    private final long frameMillis;
+    private BufferedImage image = null;
+    private long next = 0;
+    private long frames = 0;
+    private volatile long firstMillis = -1;
+    private volatile long lastMillis = 0;
+
+    /**
+     * @param clock the clock of the recording
+     * @param fps the frame rate to give frames at
+     */
+    public SyntheticScreen(AcceleratedClock clock, int fps) {
+        this.clock = clock;
+        this.frameMillis = 1000 / fps;
+    }
+
+    @Override
+    public BufferedImage capture(Rectangle region) {
+        // Paced like a real grab, the loop doesn't spin
+        long wait = next - clock.elapsedMillis();
+        if(wait > 0){
+            LockSupport.parkNanos(clock.toRealNanos(wait));
+        }
+        long now = clock.elapsedMillis();
+        next = Math.max(next + frameMillis, now);
+
+        if(image == null || image.getWidth() != region.width || image.getHeight() != region.height){
+            image = new BufferedImage(region.width, region.height, BufferedImage.TYPE_INT_RGB);
+        }
+        Graphics2D g = image.createGraphics();
+        g.setColor(Color.DARK_GRAY);
+        g.fillRect(0, 0, region.width, region.height);
+        g.setColor(Color.ORANGE);
+        g.fillRect((int) (frames * 4 % region.width), 0, 32, region.height);
+        g.setColor(Color.WHITE);
+        g.drawString(String.format("%d  %.1f s", frames, now / 1000.0), 16, 24);
+        g.dispose();
+
+        if(frames++ == 0) firstMillis = now;
+        lastMillis = now;
+        return image;
+    }
+
+    /**
+     * @return the simulated time of the first frame given, in milliseconds,
+     * -1 before it
+     */
+    public long getFirstMillis() {
+        return firstMillis;
+    }
+
+    /**
+     * @return the simulated time of the last frame given, in milliseconds
+     */
+    public long getLastMillis() {
+        return lastMillis;
+    }
+}
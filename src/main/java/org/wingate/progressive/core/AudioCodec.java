@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2023 util2
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.wingate.progressive.core;
+
+import org.bytedeco.ffmpeg.avcodec.AVCodec;
+import org.bytedeco.ffmpeg.global.avcodec;
+import org.bytedeco.javacpp.IntPointer;
+
+/**
+ * The audio encoders. The device rate goes to the encoder as is when it
+ * accepts it, otherwise the encoder runs at its nearest rate and FFmpeg
+ * resamples once, in swresample, never in Java.
+ *
+ * @author util2
+ */
+public enum AudioCodec {
+    /** Plays everywhere, 192 kb/s */
+    AAC(avcodec.AV_CODEC_ID_AAC, 192000),
+    /** Better than AAC at a lower rate, 48 kHz family only, best in MKV */
+    OPUS(avcodec.AV_CODEC_ID_OPUS, 128000),
+    /** Lossless, the bitrate follows the content */
+    FLAC(avcodec.AV_CODEC_ID_FLAC, 0);
+
+    private final int codecId;
+    private final int bitrate;
+
+    private AudioCodec(int codecId, int bitrate) {
+        this.codecId = codecId;
+        this.bitrate = bitrate;
+    }
+
+    public int getCodecId() {
+        return codecId;
+    }
+
+    /**
+     * @return the target bitrate in bits per second, 0 for lossless
+     */
+    public int getBitrate() {
+        return bitrate;
+    }
+
+    /**
+     * Needs the natives loaded.
+     * @param deviceRate the rate the audio is captured at
+     * @return the rate to open the encoder with, deviceRate if it is
+     * supported, the nearest rate above it (or the highest) otherwise
+     */
+    public int getEncoderRate(int deviceRate){
+        AVCodec codec = avcodec.avcodec_find_encoder(codecId);
+        IntPointer rates = codec == null ? null : codec.supported_samplerates();
+        // No list: any rate
+        if(rates == null || rates.isNull()) return deviceRate;
+
+        int above = 0, highest = 0;
+        for(int i=0; rates.get(i) != 0; i++){
+            int rate = rates.get(i);
+            if(rate == deviceRate) return rate;
+            if(rate > deviceRate && (above == 0 || rate < above)) above = rate;
+            highest = Math.max(highest, rate);
+        }
+        return above != 0 ? above : highest;
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2023 util2
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.wingate.progressive.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.DataLine;
+import javax.sound.sampled.Line;
+import javax.sound.sampled.Mixer;
+import javax.sound.sampled.TargetDataLine;
+
+/**
+ * The audio capture devices, enumerated once on a background thread and
+ * kept up to date by polling. Each device comes with the format it was
+ * probed for: 16 bits, at the rate the device really runs at when it says
+ * so, 48 kHz or 44.1 kHz otherwise, stereo if it can. Opening the line with
+ * that format never fails on start and doesn't make the OS resample.
+ *
+ * @author util2
+ */
+public class AudioDevices {
+
+    private final static long POLL_SECONDS = 5;
+    // Preferred rates, when the device doesn't tell its own
+    private final static float[] RATES = { 48000f, 44100f, 96000f, 32000f, 22050f, 16000f };
+
+    public static class Device {
+
+        private final Mixer.Info info;
+        private final AudioFormat format;
+
+        public Device(Mixer.Info info, AudioFormat format) {
+            this.info = info;
+            this.format = format;
+        }
+
+        public Mixer.Info getInfo() {
+            return info;
+        }
+
+        /**
+         * @return the format to open the line with
+         */
+        public AudioFormat getFormat() {
+            return format;
+        }
+
+        public String getName() {
+            return info.getName();
+        }
+
+        @Override
+        public String toString() {
+            return info.getName();
+        }
+    }
+
+    private final ScheduledExecutorService poller = Executors.newSingleThreadScheduledExecutor((r) -> {
+        Thread t = new Thread(r, "AudioDevices");
+        t.setDaemon(true);
+        return t;
+    });
+    private final CountDownLatch ready = new CountDownLatch(1);
+    private final List<Runnable> listeners = new CopyOnWriteArrayList<>();
+    // Probing opens nothing but is slow on some drivers, done once per device
+    private final Map<String, AudioFormat> probed = new HashMap<>();
+    private volatile List<Device> devices = Collections.emptyList();
+
+    public AudioDevices() {
+    }
+
+    /**
+     * Starts the enumeration in the background, then every few seconds.
+     */
+    public void start(){
+        poller.scheduleWithFixedDelay(this::refresh, 0, POLL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Formats known from a previous run, see {@link Calibration}: these
+     * devices aren't probed again. Must be called before {@link #start()}.
+     * @param formats the formats by device name
+     */
+    public void addKnownFormats(Map<String, AudioFormat> formats){
+        probed.putAll(formats);
+    }
+
+    public void stop(){
+        poller.shutdownNow();
+    }
+
+    /**
+     * @param listener called on the polling thread when a device comes or
+     * goes, and after the first enumeration
+     */
+    public void addChangeListener(Runnable listener){
+        listeners.add(listener);
+    }
+
+    /**
+     * @return the capture devices known so far
+     */
+    public List<Device> getDevices() {
+        return devices;
+    }
+
+    /**
+     * @param name the name of a device
+     * @return the device, or null if it isn't there (anymore)
+     */
+    public Device find(String name){
+        for(Device device : devices){
+            if(device.getName().equals(name)) return device;
+        }
+        return null;
+    }
+
+    /**
+     * @param timeout the maximum time to wait
+     * @param unit the unit of the timeout
+     * @return true once the first enumeration is done
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitReady(long timeout, TimeUnit unit) throws InterruptedException {
+        return ready.await(timeout, unit);
+    }
+
+    private void refresh(){
+        try {
+            List<Device> found = new ArrayList<>();
+            for(Mixer.Info info : AudioSystem.getMixerInfo()){
+                AudioFormat format = probed.get(info.getName());
+                if(format == null && !probed.containsKey(info.getName())){
+                    format = probe(info);
+                    probed.put(info.getName(), format);
+                }
+                if(format != null){
+                    found.add(new Device(info, format));
+                }
+            }
+
+            boolean changed = found.size() != devices.size();
+            for(int i=0; !changed && i<found.size(); i++){
+                changed = !found.get(i).getName().equals(devices.get(i).getName());
+            }
+            devices = Collections.unmodifiableList(found);
+
+            if(changed || ready.getCount() > 0){
+                ready.countDown();
+                for(Runnable listener : listeners){
+                    listener.run();
+                }
+            }
+        } catch (RuntimeException ex) {
+            // A driver that fails must not stop the polling
+            Logger.getLogger(AudioDevices.class.getName()).log(Level.SEVERE, null, ex);
+            ready.countDown();
+        }
+    }
+
+    /**
+     * @param info a mixer
+     * @return the best 16 bits capture format of this mixer, null if it
+     * can't capture
+     */
+    public static AudioFormat probe(Mixer.Info info){
+        Mixer mixer = AudioSystem.getMixer(info);
+
+        // Rates the device announces, NOT_SPECIFIED means any
+        List<Float> announced = new ArrayList<>();
+        boolean capture = false;
+        for(Line.Info lineInfo : mixer.getTargetLineInfo()){
+            if(!(lineInfo instanceof DataLine.Info dataInfo)) continue;
+            if(!TargetDataLine.class.isAssignableFrom(dataInfo.getLineClass())) continue;
+            capture = true;
+            for(AudioFormat f : dataInfo.getFormats()){
+                if(f.getSampleSizeInBits() == 16
+                        && f.getSampleRate() != AudioSystem.NOT_SPECIFIED
+                        && !announced.contains(f.getSampleRate())){
+                    announced.add(f.getSampleRate());
+                }
+            }
+        }
+        if(!capture) return null;
+
+        List<Float> rates = new ArrayList<>();
+        for(float rate : RATES){
+            if(announced.isEmpty() || announced.contains(rate)) rates.add(rate);
+        }
+        // A device with a single fixed rate runs at that rate
+        for(float rate : announced){
+            if(!rates.contains(rate)) rates.add(rate);
+        }
+
+        for(int channels = 2; channels >= 1; channels--){
+            for(float rate : rates){
+                AudioFormat format = new AudioFormat(rate, 16, channels, true, false);
+                if(mixer.isLineSupported(new DataLine.Info(TargetDataLine.class, format))){
+                    return format;
+                }
+            }
+        }
+        return null;
+    }
+}
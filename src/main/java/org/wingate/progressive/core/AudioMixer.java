@@ -0,0 +1,314 @@
+/*
+ * Copyright (C) 2023 util2
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.wingate.progressive.core;
+
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.DataLine;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.Mixer;
+import javax.sound.sampled.TargetDataLine;
+
+/**
+ * Mixes several capture devices (microphone, system loopback...) into one
+ * 16 bits stream. Each source is read by its own thread into its own ring,
+ * so a device that blocks or lags never holds the others. The sources are
+ * aligned on their sample count: sample k of every source goes to output
+ * sample k plus the offset of the source, 0 at first. The output follows the
+ * most advanced source minus a latency margin. A source further behind than
+ * that (started late, slower clock) gets silence for the missing part, then
+ * its offset is moved so that its next sample goes at the current position:
+ * it rejoins the mix after that one gap.
+ *
+ * Mixing is done in preallocated buffers, nothing is allocated per chunk.
+ *
+ * @author util2
+ */
+public class AudioMixer {
+
+    // A source may be this late before it is replaced by silence
+    private final static int LATENCY_MILLIS = 100;
+    // Each source keeps 2 seconds, the reading threads read 20 ms at a time
+    private final static int RING_MILLIS = 2000;
+    private final static int READ_MILLIS = 20;
+    // Gains are applied in fixed point
+    private final static int GAIN_SHIFT = 12;
+
+    public static class Source implements Runnable {
+
+        private final Mixer.Info info;
+        private final AudioFormat format;
+        private volatile int gain;
+        private TargetDataLine line;
+        private Thread thread;
+        private volatile boolean running = false;
+
+        // Written by the source thread only, read by the mixer
+        private final short[] ring;
+        private final int capacity;
+        private final int channels;
+        private volatile long written = 0;
+        // Read by the mixer only: the next sample to mix, and where the
+        // samples of this source go in the output
+        private long readPos = 0;
+        private long offset = 0;
+
+        private Source(Mixer.Info info, AudioFormat format, float gain) {
+            this.info = info;
+            this.format = format;
+            this.channels = format.getChannels();
+            this.capacity = (int) (format.getSampleRate() * RING_MILLIS / 1000);
+            this.ring = new short[capacity * channels];
+            setGain(gain);
+        }
+
+        public Mixer.Info getInfo() {
+            return info;
+        }
+
+        public float getGain() {
+            return gain / (float) (1 << GAIN_SHIFT);
+        }
+
+        /**
+         * @param gain 1 leaves the source as is, 0 mutes it
+         */
+        public final void setGain(float gain) {
+            this.gain = Math.round(gain * (1 << GAIN_SHIFT));
+        }
+
+        @Override
+        public void run() {
+            int frameSize = format.getFrameSize();
+            byte[] bytes = new byte[(int) (format.getSampleRate() * READ_MILLIS / 1000) * frameSize];
+            while(running){
+                int n = line.read(bytes, 0, bytes.length);
+                int frames = n / frameSize;
+                if(frames == 0) continue;
+
+                // Little endian 16 bits to the ring, overwriting the oldest
+                // samples if the mixer doesn't keep up
+                long w = written;
+                int i = 0;
+                for(int f=0; f<frames; f++){
+                    int base = (int) ((w + f) % capacity) * channels;
+                    for(int c=0; c<channels; c++){
+                        ring[base + c] = (short) ((bytes[i] & 0xff) | (bytes[i + 1] << 8));
+                        i += 2;
+                    }
+                }
+                written = w + frames;
+            }
+        }
+    }
+
+    private final AudioFormat format;
+    private final int channels;
+    private final int latencyFrames;
+    private final List<Source> sources = new ArrayList<>();
+
+    // Output of the last mix, and the accumulator, both sized for 1 second
+    private final int maxFrames;
+    private final int[] acc;
+    private final short[] out;
+    private final ShortBuffer output;
+    private long position = 0;
+    private volatile boolean started = false;
+    private volatile boolean stopped = false;
+
+    /**
+     * @param format the output format, 16 bits signed, every source runs at
+     * its sample rate
+     */
+    public AudioMixer(AudioFormat format) {
+        this.format = format;
+        this.channels = format.getChannels();
+        this.latencyFrames = (int) (format.getSampleRate() * LATENCY_MILLIS / 1000);
+        this.maxFrames = (int) format.getSampleRate();
+        this.acc = new int[maxFrames * channels];
+        this.out = new short[maxFrames * channels];
+        this.output = ShortBuffer.wrap(out);
+    }
+
+    /**
+     * Must be called before {@link #open()}.
+     * @param info the capture device
+     * @param gain 1 leaves the source as is
+     * @return the source, to change its gain later
+     * @throws LineUnavailableException if the device can't capture at the
+     * rate of the mix
+     */
+    public Source addSource(Mixer.Info info, float gain) throws LineUnavailableException {
+        Mixer mixer = AudioSystem.getMixer(info);
+        // Same rate for all, the device channel count is converted here
+        for(int c : new int[]{ channels, 3 - channels }){
+            AudioFormat f = new AudioFormat(format.getSampleRate(), 16, c, true, false);
+            if(mixer.isLineSupported(new DataLine.Info(TargetDataLine.class, f))){
+                Source source = new Source(info, f, gain);
+                sources.add(source);
+                return source;
+            }
+        }
+        throw new LineUnavailableException(info.getName() + " can't capture at " + format.getSampleRate() + " Hz");
+    }
+
+    public List<Source> getSources() {
+        return Collections.unmodifiableList(sources);
+    }
+
+    /**
+     * @return the format of {@link #getOutput()}
+     */
+    public AudioFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * Opens every line, nothing is captured yet.
+     * @throws LineUnavailableException if a device refuses
+     */
+    public void open() throws LineUnavailableException {
+        for(Source source : sources){
+            Mixer mixer = AudioSystem.getMixer(source.info);
+            source.line = (TargetDataLine) mixer.getLine(new DataLine.Info(TargetDataLine.class, source.format));
+            source.line.open(source.format);
+        }
+    }
+
+    /**
+     * Starts every line at once, and their reading threads.
+     */
+    public void start(){
+        for(Source source : sources){
+            source.line.start();
+        }
+        for(Source source : sources){
+            source.running = true;
+            source.thread = new Thread(source, "Audio " + source.info.getName());
+            source.thread.setDaemon(true);
+            source.thread.start();
+        }
+        started = true;
+    }
+
+    public boolean isStarted() {
+        return started;
+    }
+
+    /**
+     * Stops capturing, what was captured can still be mixed.
+     * @throws InterruptedException if interrupted while waiting for the
+     * reading threads
+     */
+    public void stop() throws InterruptedException {
+        for(Source source : sources){
+            source.running = false;
+            source.line.stop();
+        }
+        for(Source source : sources){
+            source.thread.join(1000);
+        }
+        stopped = true;
+    }
+
+    public void close(){
+        for(Source source : sources){
+            if(source.line != null) source.line.close();
+        }
+    }
+
+    /**
+     * Throws away everything captured so far, for a pause.
+     */
+    public void discard(){
+        position = Math.max(position, maxWritten());
+    }
+
+    private long maxWritten(){
+        long max = 0;
+        for(Source source : sources){
+            max = Math.max(max, source.written + source.offset);
+        }
+        return max;
+    }
+
+    /**
+     * Mixes what is due, to be called by a single thread.
+     * @return the number of frames now in {@link #getOutput()}, 0 if none
+     */
+    public int mix(){
+        // Once stopped, everything left is due
+        long end = stopped ? maxWritten() : maxWritten() - latencyFrames;
+        int frames = (int) Math.min(end - position, maxFrames);
+        if(frames <= 0) return 0;
+
+        Arrays.fill(acc, 0, frames * channels, 0);
+        for(Source source : sources){
+            long w = source.written;
+            // Overwritten by the source thread
+            long rp = Math.max(source.readPos, w - source.capacity);
+            if(rp + source.offset < position){
+                // Too late for the mix: silence so far, then the source
+                // goes on from here instead of being late for good
+                source.offset = position - rp;
+            }
+            long shift = source.offset - position;
+            long stop = Math.min(w, position + frames - source.offset);
+
+            int g = source.gain;
+            int sc = source.channels;
+            for(long f=rp; f<stop; f++){
+                int o = (int) (f + shift) * channels;
+                int r = (int) (f % source.capacity) * sc;
+                if(sc == channels){
+                    for(int c=0; c<channels; c++){
+                        acc[o + c] += (source.ring[r + c] * g) >> GAIN_SHIFT;
+                    }
+                }else if(sc == 1){
+                    // Mono source in a stereo mix
+                    int s = (source.ring[r] * g) >> GAIN_SHIFT;
+                    acc[o] += s;
+                    acc[o + 1] += s;
+                }else{
+                    // Stereo source in a mono mix
+                    acc[o] += ((source.ring[r] + source.ring[r + 1]) * g) >> (GAIN_SHIFT + 1);
+                }
+            }
+            source.readPos = Math.max(rp, stop);
+        }
+
+        for(int i=0; i<frames * channels; i++){
+            int s = acc[i];
+            out[i] = (short) (s > Short.MAX_VALUE ? Short.MAX_VALUE : s < Short.MIN_VALUE ? Short.MIN_VALUE : s);
+        }
+        position += frames;
+        output.clear().limit(frames * channels);
+        return frames;
+    }
+
+    /**
+     * @return the samples of the last {@link #mix()}, interleaved
+     */
+    public ShortBuffer getOutput() {
+        return output;
+    }
+}
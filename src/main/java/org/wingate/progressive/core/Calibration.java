@@ -0,0 +1,304 @@
+/*
+ * Copyright (C) 2023 util2
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.wingate.progressive.core;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.sound.sampled.AudioFormat;
+import org.bytedeco.ffmpeg.global.avcodec;
+import org.bytedeco.javacv.FFmpegFrameRecorder;
+import org.bytedeco.javacv.Frame;
+import org.bytedeco.javacv.FrameRecorder;
+import org.bytedeco.javacv.Java2DFrameConverter;
+
+/**
+ * What this machine can do, measured once by a short synthetic recording
+ * and kept in calibration.properties next to config.txt: the time of the
+ * conversion path, the highest frame rate the encoder sustains for each
+ * preset and resolution, and the probed format of each audio device.
+ *
+ * The file carries a version and a fingerprint of the hardware and the
+ * JVM. Loading it is a plain properties read, and it is ignored, so that
+ * the machine is calibrated again, when either of them changed.
+ *
+ * @author util2
+ */
+public class Calibration {
+
+    public final static String FILE_NAME = "calibration.properties";
+    private final static int VERSION = 1;
+
+    // From the fastest to the best compression
+    private final static String[] PRESETS = { "ultrafast", "veryfast", "medium" };
+    private final static Dimension[] RESOLUTIONS = { new Dimension(1280, 720), new Dimension(1920, 1080) };
+    private final static int WARMUP_FRAMES = 5;
+    private final static int BENCH_FRAMES = 30;
+    // Keep a fifth of the measured speed for the grab and the audio
+    private final static double HEADROOM = 0.8;
+
+    private final Properties values;
+
+    private Calibration(Properties values) {
+        this.values = values;
+    }
+
+    /**
+     * @return what identifies the machine: OS, CPU architecture and cores,
+     * and the JVM
+     */
+    public static String fingerprint(){
+        return String.join("|",
+                System.getProperty("os.name"),
+                System.getProperty("os.version"),
+                System.getProperty("os.arch"),
+                Integer.toString(Runtime.getRuntime().availableProcessors()),
+                System.getProperty("java.vm.vendor"),
+                System.getProperty("java.vm.version")
+        );
+    }
+
+    /**
+     * @param file the cache file
+     * @return the calibration, or null if there is none, or it was made by
+     * another version, on another machine or JVM
+     */
+    public static Calibration load(File file){
+        if(!file.isFile()) return null;
+        Properties p = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            p.load(in);
+        } catch (IOException | IllegalArgumentException ex) {
+            Logger.getLogger(Calibration.class.getName()).log(Level.SEVERE, null, ex);
+            return null;
+        }
+        if(!Integer.toString(VERSION).equals(p.getProperty("version"))) return null;
+        if(!fingerprint().equals(p.getProperty("fingerprint"))) return null;
+        return new Calibration(p);
+    }
+
+    /**
+     * @param file the cache file
+     */
+    public void save(File file){
+        try (OutputStream out = new FileOutputStream(file)) {
+            values.store(out, "Progressive calibration, deleted to calibrate again");
+        } catch (IOException ex) {
+            Logger.getLogger(Calibration.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    /**
+     * Records a few synthetic frames at each resolution and preset into
+     * nothing. Takes a few seconds, to be run off the EDT.
+     * @param screen the size of the screen, measured too if it isn't one of
+     * the usual resolutions
+     * @param devices the audio devices, their probed format is kept
+     * @return the measures
+     * @throws InterruptedException if interrupted while the natives load
+     */
+    public static Calibration run(Dimension screen, List<AudioDevices.Device> devices) throws InterruptedException {
+        Natives.load();
+
+        Properties p = new Properties();
+        p.setProperty("version", Integer.toString(VERSION));
+        p.setProperty("fingerprint", fingerprint());
+
+        List<Dimension> sizes = new ArrayList<>(List.of(RESOLUTIONS));
+        if(screen != null && !sizes.contains(screen)) sizes.add(screen);
+        for(Dimension size : sizes){
+            String res = size.width + "x" + size.height;
+            for(String preset : PRESETS){
+                double[] millis = bench(size, preset);
+                if(millis == null) continue;
+                // The conversion doesn't depend on the preset
+                p.setProperty("convert." + res, format(millis[0]));
+                p.setProperty("fps." + preset + "." + res, format(1000.0 / (millis[0] + millis[1])));
+            }
+        }
+
+        for(AudioDevices.Device device : devices){
+            AudioFormat f = device.getFormat();
+            p.setProperty("audio." + device.getName(),
+                    (int) f.getSampleRate() + "," + f.getSampleSizeInBits() + "," + f.getChannels());
+        }
+        return new Calibration(p);
+    }
+
+    /**
+     * @return milliseconds per frame to convert and to encode, null if the
+     * encoder refused this size
+     */
+    private static double[] bench(Dimension size, String preset){
+        // What the robot gives: RGB, blitted to BGR then wrapped in a Frame
+        BufferedImage screen = new BufferedImage(size.width, size.height, BufferedImage.TYPE_INT_RGB);
+        BufferedImage bgr = new BufferedImage(size.width, size.height, BufferedImage.TYPE_3BYTE_BGR);
+        long convert = 0, encode = 0;
+
+        try (Java2DFrameConverter converter = new Java2DFrameConverter();
+                FFmpegFrameRecorder recorder = new FFmpegFrameRecorder(OutputStream.nullOutputStream(), size.width, size.height, 0)) {
+            recorder.setFormat("matroska");
+            recorder.setVideoCodec(avcodec.AV_CODEC_ID_H264);
+            recorder.setVideoOption("tune", "zerolatency");
+            recorder.setVideoOption("preset", preset);
+            recorder.setVideoOption("crf", Integer.toString(CaptureAV.CRF));
+            recorder.setVideoBitrate(2000000);
+            recorder.setFrameRate(CaptureAV.FRAME_RATE);
+            recorder.setGopSize(CaptureAV.FRAME_RATE * 2);
+            recorder.start();
+
+            for(int i=0; i<WARMUP_FRAMES + BENCH_FRAMES; i++){
+                // Moving content, so that the encoder has some work
+                Graphics2D g = screen.createGraphics();
+                g.setPaint(new GradientPaint(i * 16, 0, Color.DARK_GRAY, size.width - i * 16, size.height, Color.ORANGE));
+                g.fillRect(0, 0, size.width, size.height);
+                g.setColor(Color.WHITE);
+                g.drawString("Progressive " + i, (i * 37) % size.width, size.height / 2);
+                g.dispose();
+
+                long t0 = System.nanoTime();
+                Graphics2D g2d = bgr.createGraphics();
+                g2d.drawImage(screen, 0, 0, null);
+                g2d.dispose();
+                Frame frame = converter.convert(bgr);
+                long t1 = System.nanoTime();
+                recorder.record(frame);
+                long t2 = System.nanoTime();
+                if(i >= WARMUP_FRAMES){
+                    convert += t1 - t0;
+                    encode += t2 - t1;
+                }
+            }
+            recorder.stop();
+        } catch (FrameRecorder.Exception ex) {
+            Logger.getLogger(Calibration.class.getName()).log(Level.SEVERE, null, ex);
+            return null;
+        }
+        return new double[]{ convert / 1e6 / BENCH_FRAMES, encode / 1e6 / BENCH_FRAMES };
+    }
+
+    private static String format(double d){
+        return String.format(Locale.ROOT, "%.2f", d);
+    }
+
+    private static double parse(String s){
+        return s == null ? 0 : Double.parseDouble(s);
+    }
+
+    /**
+     * @param width the width of the region
+     * @param height the height of the region
+     * @return the calibrated resolution nearest in pixel count
+     */
+    private String nearest(int width, int height){
+        String best = null;
+        long pixels = (long) width * height, distance = Long.MAX_VALUE;
+        for(String key : values.stringPropertyNames()){
+            if(!key.startsWith("convert.")) continue;
+            String res = key.substring("convert.".length());
+            String[] wh = res.split("x");
+            long d = Math.abs(Long.parseLong(wh[0]) * Long.parseLong(wh[1]) - pixels);
+            if(d < distance){
+                distance = d;
+                best = res;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @param preset the encoder preset
+     * @param width the width of the region
+     * @param height the height of the region
+     * @return the highest frame rate measured, scaled from the nearest
+     * calibrated resolution, 0 if unknown
+     */
+    public double getMaxFps(String preset, int width, int height){
+        String res = nearest(width, height);
+        if(res == null) return 0;
+        String[] wh = res.split("x");
+        double fps = parse(values.getProperty("fps." + preset + "." + res));
+        // Encoding time grows about with the pixel count
+        return fps * Long.parseLong(wh[0]) * Long.parseLong(wh[1]) / ((double) width * height);
+    }
+
+    /**
+     * @param width the width of the region
+     * @param height the height of the region
+     * @return the time of the conversion path in milliseconds per frame, 0
+     * if unknown
+     */
+    public double getConvertMillis(int width, int height){
+        String res = nearest(width, height);
+        return res == null ? 0 : parse(values.getProperty("convert." + res));
+    }
+
+    /**
+     * @param width the width of the region
+     * @param height the height of the region
+     * @param fps the frame rate to record at
+     * @return the preset with the best compression that still keeps up,
+     * ultrafast if none does
+     */
+    public String getBestPreset(int width, int height, int fps){
+        String best = PRESETS[0];
+        for(String preset : PRESETS){
+            if(getMaxFps(preset, width, height) * HEADROOM >= fps) best = preset;
+        }
+        return best;
+    }
+
+    /**
+     * @return the audio formats probed at calibration, by device name
+     */
+    public Map<String, AudioFormat> getAudioFormats(){
+        Map<String, AudioFormat> formats = new HashMap<>();
+        for(String key : values.stringPropertyNames()){
+            if(!key.startsWith("audio.")) continue;
+            String[] f = values.getProperty(key).split(",");
+            formats.put(key.substring("audio.".length()), new AudioFormat(
+                    Float.parseFloat(f[0]), Integer.parseInt(f[1]), Integer.parseInt(f[2]), true, false));
+        }
+        return formats;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for(String key : new TreeSet<>(values.stringPropertyNames())){
+            sb.append(key).append(" = ").append(values.getProperty(key)).append('\n');
+        }
+        return sb.toString();
+    }
+}
@@ -17,13 +17,21 @@
 package org.wingate.progressive.core;
 
 import java.awt.AWTException;
+import java.awt.Dimension;
+import java.awt.Graphics2D;
 import java.awt.Rectangle;
-import java.awt.Robot;
 import java.awt.image.BufferedImage;
 import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.ShortBuffer;
+import java.time.Clock;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
@@ -38,6 +46,11 @@ import org.bytedeco.ffmpeg.global.avcodec;
 import org.bytedeco.javacv.FFmpegFrameRecorder;
 import org.bytedeco.javacv.Frame;
 import org.bytedeco.javacv.Java2DFrameConverter;
+import org.wingate.progressive.core.event.AudioChunkEvent;
+import org.wingate.progressive.core.event.EncodeEvent;
+import org.wingate.progressive.core.event.FrameConvertEvent;
+import org.wingate.progressive.core.event.FrameGrabEvent;
+import org.wingate.progressive.core.event.TimestampCorrectionEvent;
 
 /**
  *
@@ -45,28 +58,308 @@ import org.bytedeco.javacv.Java2DFrameConverter;
  */
 public class CaptureAV implements Runnable {
 
-    private final static int FRAME_RATE = 25;
-    private final static int GOP_LENGTH_IN_FRAMES = 50;
+    public final static int FRAME_RATE = 25;
+    public final static String PRESET = "ultrafast";
+    public final static int CRF = 22;
+    // Key frame every 2 seconds, whatever the frame rate is
+    private final static int GOP_SECONDS = 2;
+
+    private int frameRate = FRAME_RATE;
+    private String preset = PRESET;
+    private int crf = CRF;
 
     private long startTime = 0;
+    // Time spent in pause, taken out of the timestamps
+    private volatile long pausedMillis = 0;
+    private long pauseStart = 0;
     private long videoTS = 0;
+    // Timelapse: time between grabs, and when the next one is due
+    private long timelapseMillis = 0;
+    private long nextGrab = 0;
+    // When the source gave the frame being encoded
+    private long grabbedNanos = 0;
+    private long framesRecorded = 0;
 
     private final File media;
+    private final ReplayBuffer replay;
+    private StreamOutput stream = null;
     private final Rectangle r;
     private final Mixer.Info mixerInfo;
     
     private final Java2DFrameConverter converter = new Java2DFrameConverter();
+    // The screen unless another source is given
+    private FrameSource source = null;
+    // Size of the images of the source, in device pixels for the screen
+    private Dimension frameSize = null;
+    // Size of the video if it must differ, scaled by the encoder
+    private Dimension outputSize = null;
+    private Clock clock = Clock.systemUTC();
+    private BufferedImage bgrImage = null;
+    private int encoderThreads = 0;
+    private final List<FrameOverlay> overlays = new CopyOnWriteArrayList<>();
+    private final CaptureStats stats;
     private FFmpegFrameRecorder recorder;
     private Thread process;
-    private Thread audio;
     private TargetDataLine line;
+    private AudioFormat audioFormat;
+    private byte[] audioBytes;
+    private ScheduledThreadPoolExecutor audioExec;
+    private AudioCodec audioCodec = AudioCodec.AAC;
+    // Keyframes and thumbnails next to the file, for review tools
+    private boolean seekIndexed = true;
+    private SeekIndex seekIndex = null;
+    // Several devices mixed, in place of the single line
+    private AudioMixer audioMixer = null;
     
     private volatile boolean onLoop = false;
+    // Stop asked, maybe while arm() was still preparing
+    private boolean stopRequested = false;
+    // Armed: recorder, line and frame source are open, the thread waits for go
+    private volatile boolean armed = false;
+    private final CountDownLatch go = new CountDownLatch(1);
+    private volatile boolean paused = false;
+    // Set on resume, the audio tick empties the line once
+    private volatile boolean audioResync = false;
+    private final Object pauseLock = new Object();
+    private final CountDownLatch finished = new CountDownLatch(1);
+    private final Finalization finalization = new Finalization();
 
     public CaptureAV(File media, Rectangle r, Mixer.Info mixerInfo) {
         this.media = media;
+        this.replay = null;
         this.r = r;
         this.mixerInfo = mixerInfo;
+        // The muxer writes the file on its own, inside the encode call
+        this.stats = new CaptureStats(EnumSet.complementOf(EnumSet.of(CaptureStats.Stage.MUX)));
+    }
+    
+    /**
+     * Instant replay mode: the encoded stream only goes to the ring, call
+     * {@link #saveReplay(File)} to write the last seconds to a file.
+     * @param replay the in-memory ring to fill
+     * @param r the area of screen to record
+     * @param mixerInfo the audio device
+     */
+    public CaptureAV(ReplayBuffer replay, Rectangle r, Mixer.Info mixerInfo) {
+        this.media = null;
+        this.replay = replay;
+        this.r = r;
+        this.mixerInfo = mixerInfo;
+        this.stats = new CaptureStats();
+    }
+    
+    /**
+     * Sends the recording to a network sink too, must be called before
+     * {@link #startRecording()}. Ignored in replay mode.
+     * @param stream the live output, or null for the file only
+     */
+    public void setStreamOutput(StreamOutput stream) {
+        this.stream = stream;
+    }
+    
+    /**
+     * Limits the threads of the video encoder, when several captures share
+     * the cores. Must be called before {@link #startRecording()}.
+     * @param encoderThreads thread count, 0 lets the encoder decide
+     */
+    public void setEncoderThreads(int encoderThreads) {
+        this.encoderThreads = encoderThreads;
+    }
+    
+    /**
+     * Adds a compositing stage, run on each frame before it is encoded.
+     * @param overlay the stage to add (cursor, webcam...)
+     */
+    public void addOverlay(FrameOverlay overlay){
+        overlays.add(overlay);
+    }
+    
+    public void removeOverlay(FrameOverlay overlay){
+        overlays.remove(overlay);
+    }
+    
+    /**
+     * Must be called before {@link #startRecording()}.
+     * @param frameRate frames per second of the output
+     */
+    public void setFrameRate(int frameRate) {
+        this.frameRate = frameRate;
+    }
+
+    public int getFrameRate() {
+        return frameRate;
+    }
+    
+    /**
+     * Timelapse mode, must be called before {@link #arm()}: one frame is
+     * grabbed per interval and the thread sleeps in between, the frames play
+     * back to back at the frame rate. There is no audio.
+     * @param intervalMillis the time between two grabs, 0 for a normal
+     * recording
+     */
+    public void setTimelapse(long intervalMillis) {
+        this.timelapseMillis = intervalMillis;
+    }
+
+    public long getTimelapse() {
+        return timelapseMillis;
+    }
+    
+    /**
+     * Must be called before {@link #startRecording()}.
+     * @param preset x264 preset, from ultrafast to veryslow
+     */
+    public void setPreset(String preset) {
+        this.preset = preset;
+    }
+
+    public String getPreset() {
+        return preset;
+    }
+    
+    /**
+     * Must be called before {@link #startRecording()}.
+     * @param crf x264 constant rate factor, lower is better
+     */
+    public void setCrf(int crf) {
+        this.crf = crf;
+    }
+
+    public int getCrf() {
+        return crf;
+    }
+
+    /**
+     * @return the area of screen recorded
+     */
+    public Rectangle getRegion() {
+        return r;
+    }
+    
+    /**
+     * Must be called before {@link #arm()}.
+     * @param outputSize the size of the video, null for the size of the
+     * frames (device pixels of the region on a scaled desktop)
+     */
+    public void setOutputSize(Dimension outputSize) {
+        this.outputSize = outputSize;
+    }
+
+    public Dimension getOutputSize() {
+        return outputSize;
+    }
+
+    private Dimension videoSize(){
+        // Only scaled when asked, and then by swscale in the same pass as
+        // the BGR to YUV conversion
+        return outputSize != null ? outputSize : frameSize;
+    }
+    
+    private int getGopLength(){
+        return frameRate * GOP_SECONDS;
+    }
+    
+    private long getFrameMicros(){
+        return 1_000_000L / frameRate;
+    }
+    
+    /**
+     * @return the live telemetry of this capture
+     */
+    public CaptureStats getStats() {
+        return stats;
+    }
+    
+    private int audioChannels(){
+        // No audio device, or a timelapse: video only
+        if(timelapseMillis > 0) return 0;
+        return mixerInfo == null && audioMixer == null && line == null ? 0 : getAudioFormat().getChannels();
+    }
+    
+    /**
+     * Must be called before {@link #startRecording()}.
+     * @param audioCodec the audio encoder, AAC by default
+     */
+    public void setAudioCodec(AudioCodec audioCodec) {
+        this.audioCodec = audioCodec;
+    }
+
+    public AudioCodec getAudioCodec() {
+        return audioCodec;
+    }
+
+    /**
+     * Must be called before {@link #startRecording()}.
+     * @param seekIndexed true to write a {@link SeekIndex} next to the file,
+     * the default
+     */
+    public void setSeekIndexed(boolean seekIndexed) {
+        this.seekIndexed = seekIndexed;
+    }
+
+    public boolean isSeekIndexed() {
+        return seekIndexed;
+    }
+    
+    /**
+     * Records the mix of several devices instead of the single one given to
+     * the constructor. Must be called before {@link #arm()}.
+     * @param audioMixer the sources to mix, not opened yet
+     */
+    public void setAudioMixer(AudioMixer audioMixer) {
+        this.audioMixer = audioMixer;
+    }
+    
+    /**
+     * Must be called before {@link #arm()}.
+     * @param audioFormat the format the device was probed for, see
+     * {@link AudioDevices}, null for 44.1 kHz stereo
+     */
+    public void setAudioFormat(AudioFormat audioFormat) {
+        this.audioFormat = audioFormat;
+    }
+    
+    /**
+     * Records this line instead of a device, for a synthetic source. Must be
+     * called before {@link #arm()}.
+     * @param line a line not opened yet, its format is the one recorded
+     */
+    public void setAudioLine(TargetDataLine line) {
+        this.line = line;
+        this.audioFormat = line.getFormat();
+    }
+    
+    /**
+     * Must be called before {@link #arm()}.
+     * @param source where the frames come from, the screen by default
+     */
+    public void setFrameSource(FrameSource source) {
+        this.source = source;
+    }
+    
+    /**
+     * Must be called before {@link #arm()}.
+     * @param clock the time the frames are stamped with, the system clock
+     * by default, an accelerated one to soak test
+     */
+    public void setClock(Clock clock) {
+        this.clock = clock;
+    }
+    
+    public AudioFormat getAudioFormat() {
+        if(audioMixer != null) return audioMixer.getFormat();
+        // By default: 44.1 sample rate, 16 bits, stereo, signed, little endian
+        return audioFormat != null ? audioFormat : new AudioFormat(44100.0F, 16, 2, true, false);
+    }
+    
+    /**
+     * Creates a replay ring sized for this capture GOP length.
+     * @param seconds duration to keep
+     * @param maxBytes upper memory bound
+     * @return an empty ring
+     */
+    public static ReplayBuffer createReplayBuffer(int seconds, long maxBytes){
+        return new ReplayBuffer(seconds, GOP_SECONDS, maxBytes);
     }
     
     @SuppressWarnings("Convert2Lambda")
@@ -79,12 +372,53 @@ public class CaptureAV implements Runnable {
         // imageWidth = width we specified for the grabber
         // imageHeight = height we specified for the grabber
         // audioChannels = 2, because we like stereo
-        recorder = new FFmpegFrameRecorder(
-                media.getPath(),
-                r.width,
-                r.height, 
-                2
-        );
+        if(replay == null && stream == null){
+            recorder = new FFmpegFrameRecorder(
+                    media.getPath(),
+                    videoSize().width,
+                    videoSize().height,
+                    audioChannels()
+            );
+            recorder.setFormat(media.getName().toLowerCase().substring(media.getName().lastIndexOf(".")+1));
+        }else if(replay == null){
+            // Encode once, the tee muxer writes the same packets to the file
+            // and to the network
+            recorder = new FFmpegFrameRecorder(
+                    stream.toTeeSpec(media),
+                    videoSize().width,
+                    videoSize().height,
+                    audioChannels()
+            );
+            recorder.setFormat("tee");
+            // The tee muxer doesn't tell the encoders that MP4, MKV and FLV
+            // want the codec headers out of band
+            recorder.setVideoOption("flags", "+global_header");
+            recorder.setAudioOption("flags", "+global_header");
+        }else{
+            // MPEG-TS can be cut anywhere, PAT/PMT are repeated on each
+            // keyframe and packets are flushed as soon as they are muxed so
+            // that the ring is cut right on the GOP boundaries
+            recorder = new FFmpegFrameRecorder(
+                    new FilterOutputStream(replay){
+                        @Override
+                        public void write(byte[] b, int off, int len) throws IOException {
+                            // The ring is the only mux output we see
+                            long t0 = System.nanoTime();
+                            out.write(b, off, len);
+                            stats.record(CaptureStats.Stage.MUX, System.nanoTime() - t0);
+                        }
+                    },
+                    videoSize().width,
+                    videoSize().height,
+                    audioChannels()
+            );
+            recorder.setFormat("mpegts");
+            recorder.setOption("mpegts_flags", "pat_pmt_at_frames");
+            recorder.setOption("flush_packets", "1");
+            // No scene cut keyframes, the ring only knows about the GOP ones
+            recorder.setVideoOption("sc_threshold", "0");
+            recorder.setCloseOutputStream(false);
+        }
         recorder.setInterleaved(true);
 
         // decrease "startup" latency in FFMPEG (see:
@@ -98,141 +432,407 @@ public class CaptureAV implements Runnable {
         // at the other end, veryslow provides the best compression (high
         // encoder CPU) while lowering the stream size
         // (see: https://trac.ffmpeg.org/wiki/Encode/H.264)
-        recorder.setVideoOption("preset", "ultrafast");
+        recorder.setVideoOption("preset", preset);
         // Constant Rate Factor (see: https://trac.ffmpeg.org/wiki/Encode/H.264)
-        recorder.setVideoOption("crf", "22");
+        recorder.setVideoOption("crf", Integer.toString(crf));
         // 2000 kb/s, reasonable "sane" area for 720
         recorder.setVideoBitrate(2000000);
         recorder.setVideoCodec(avcodec.AV_CODEC_ID_H264);
-        recorder.setFormat(media.getName().toLowerCase().substring(media.getName().lastIndexOf(".")+1));
         // FPS (frames per second)
-        recorder.setFrameRate(FRAME_RATE);
+        recorder.setFrameRate(frameRate);
         // Key frame interval, in our case every 2 seconds -> 30 (fps) * 2 = 60
         // (gop length)
-        recorder.setGopSize(GOP_LENGTH_IN_FRAMES);
+        recorder.setGopSize(getGopLength());
+        if(encoderThreads > 0){
+            recorder.setVideoOption("threads", Integer.toString(encoderThreads));
+        }
 
-        // We don't want variable bitrate audio
-        recorder.setAudioOption("crf", "0");
-        // Highest quality
-        recorder.setAudioQuality(0);
-        // 192 Kbps
-        recorder.setAudioBitrate(192000);
-        recorder.setSampleRate(44100);
-        recorder.setAudioChannels(2);
-        recorder.setAudioCodec(avcodec.AV_CODEC_ID_AAC);
+        // No audio device, no audio stream
+        if(audioChannels() == 0) return;
         
-        // Thread for audio capture, this could be in a nested private class if you prefer...
-        audio = new Thread(new Runnable() {
+        // No audio quality: it would switch AAC to VBR and ignore the bitrate
+        recorder.setAudioCodec(audioCodec.getCodecId());
+        if(audioCodec.getBitrate() > 0){
+            recorder.setAudioBitrate(audioCodec.getBitrate());
+        }
+        // The rate of the device when the encoder takes it, otherwise
+        // recordSamples() resamples in swresample
+        recorder.setSampleRate(audioCodec.getEncoderRate((int) getAudioFormat().getSampleRate()));
+        recorder.setAudioChannels(getAudioFormat().getChannels());
+    }
+    
+    /**
+     * Opens the audio line without starting it, the sound only flows once
+     * {@link #startAudio()} is called.
+     * @throws LineUnavailableException if the device refuses the format
+     */
+    private void openLine() throws LineUnavailableException {
+        // The format probed by AudioDevices, which the line is known to
+        // support, or 44.1 kHz stereo by default
+        audioFormat = getAudioFormat();
+
+        // Get TargetDataLine with that format, unless one was given
+        if(line == null){
+            Mixer mixer = AudioSystem.getMixer(mixerInfo);
+            DataLine.Info dataLineInfo = new DataLine.Info(TargetDataLine.class, audioFormat);
+
+            // It's possible to have more control over the chosen audio device with this line:
+            line = (TargetDataLine)mixer.getLine(dataLineInfo);
+            //final TargetDataLine line = (TargetDataLine)AudioSystem.getLine(dataLineInfo);
+        }
+
+        // Open the line, capture starts later
+        line.open(audioFormat);
+
+        // Let's initialize our audio buffer...
+        final int audioBufferSize = (int) audioFormat.getSampleRate() * audioFormat.getChannels();
+        audioBytes = new byte[audioBufferSize];
+    }
+    
+    @SuppressWarnings("Convert2Lambda")
+    private void startAudio(){
+        if(audioMixer != null){
+            audioMixer.start();
+        }else{
+            line.start();
+        }
+        
+        // Using a ScheduledThreadPoolExecutor vs a while loop with
+        // a Thread.sleep will allow
+        // us to get around some OS specific timing issues, and keep
+        // to a more precise
+        // clock as the fixed rate accounts for garbage collection
+        // time, etc
+        // a similar approach could be used for the webcam capture
+        // as well, if you wish
+        audioExec = new ScheduledThreadPoolExecutor(1);
+        audioExec.scheduleAtFixedRate(new Runnable() {
             @Override
-            @SuppressWarnings("CallToPrintStackTrace")
             public void run()
             {
-                // Pick a format...
-                // NOTE: It is better to enumerate the formats that the system supports,
-                // because getLine() can error out with any particular format...
-                // For us: 44.1 sample rate, 16 bits, stereo, signed, little endian
-                AudioFormat audioFormat = new AudioFormat(44100.0F, 16, 2, true, false);
-
-                // Get TargetDataLine with that format
-                Mixer mixer = AudioSystem.getMixer(mixerInfo);
-                DataLine.Info dataLineInfo = new DataLine.Info(TargetDataLine.class, audioFormat);
-
-                System.out.println("1");
-                
                 try
                 {
-                    // Open and start capturing audio
-                    // It's possible to have more control over the chosen audio device with this line:
-                    line = (TargetDataLine)mixer.getLine(dataLineInfo);
-                    //final TargetDataLine line = (TargetDataLine)AudioSystem.getLine(dataLineInfo);
-                    line.open(audioFormat);
-                    line.start();
-
-                    final int sampleRate = (int) audioFormat.getSampleRate();
-                    final int numChannels = audioFormat.getChannels();
-
-                    // Let's initialize our audio buffer...
-                    final int audioBufferSize = sampleRate * numChannels;
-                    final byte[] audioBytes = new byte[audioBufferSize];
-
-                    // Using a ScheduledThreadPoolExecutor vs a while loop with
-                    // a Thread.sleep will allow
-                    // us to get around some OS specific timing issues, and keep
-                    // to a more precise
-                    // clock as the fixed rate accounts for garbage collection
-                    // time, etc
-                    // a similar approach could be used for the webcam capture
-                    // as well, if you wish
-                    ScheduledThreadPoolExecutor exec = new ScheduledThreadPoolExecutor(1);
-                    exec.scheduleAtFixedRate(new Runnable() {
-                        @Override
-                        @SuppressWarnings("CallToPrintStackTrace")
-                        public void run()
-                        {
-                            try
-                            {
-                                // Read from the line... non-blocking
-                                int nBytesRead = 0;
-                                while (nBytesRead == 0) {
-                                    nBytesRead = line.read(audioBytes, 0, line.available());
-                                    System.out.println("audiobytes: " + audioBytes.length);
-                                }
-
-                                // Since we specified 16 bits in the AudioFormat,
-                                // we need to convert our read byte[] to short[]
-                                // (see source from FFmpegFrameRecorder.recordSamples for AV_SAMPLE_FMT_S16)
-                                // Let's initialize our short[] array
-                                int nSamplesRead = nBytesRead / 2;
-                                short[] samples = new short[nSamplesRead];
-
-                                // Let's wrap our short[] into a ShortBuffer and
-                                // pass it to recordSamples
-                                ByteBuffer.wrap(audioBytes).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().get(samples);
-                                ShortBuffer sBuff = ShortBuffer.wrap(samples, 0, nSamplesRead);
-
-                                // recorder is instance of
-                                // org.bytedeco.javacv.FFmpegFrameRecorder
-                                recorder.recordSamples(sampleRate, numChannels, sBuff);
-                            } 
-                            catch (org.bytedeco.javacv.FrameRecorder.Exception e)
-                            {
-                                //e.printStackTrace();
-                                audio.interrupt();
-                                audio = null;
-                            }
+                    // In pause, the sound is thrown away in the
+                    // line itself, nothing is copied
+                    if (paused || audioResync) {
+                        if (audioMixer != null) {
+                            audioMixer.discard();
+                        } else {
+                            line.flush();
                         }
-                    }, 0, (long) 1000 / FRAME_RATE, TimeUnit.MILLISECONDS);
+                        audioResync = false;
+                        if (paused) return;
+                    }
+
+                    // Nothing yet: count it and wait for the next
+                    // tick instead of spinning on the line
+                    if (pumpAudio() == 0) {
+                        stats.audioUnderrun();
+                    }
                 } 
-                catch (LineUnavailableException e1)
+                catch (org.bytedeco.javacv.FrameRecorder.Exception e)
                 {
-                    e1.printStackTrace();
+                    Logger.getLogger(CaptureAV.class.getName()).log(Level.SEVERE, null, e);
+                    audioExec.shutdown();
                 }
             }
-        });
+        }, 0, (long) 1000 / frameRate, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Moves what the audio line holds to the encoder.
+     * @return the count of bytes read, 0 if the line had nothing
+     * @throws org.bytedeco.javacv.FrameRecorder.Exception if the encoder fails
+     */
+    private int pumpAudio() throws org.bytedeco.javacv.FrameRecorder.Exception {
+        if(audioMixer != null) return pumpMixer();
+        
+        // Read from the line... non-blocking
+        int available = line.available();
+        if (available == 0) return 0;
+        
+        AudioChunkEvent chunkEvent = new AudioChunkEvent();
+        chunkEvent.begin();
+        int nBytesRead = line.read(audioBytes, 0, Math.min(available, audioBytes.length));
+
+        final int sampleRate = (int) audioFormat.getSampleRate();
+        final int numChannels = audioFormat.getChannels();
         
-        audio.start();
+        // Since we specified 16 bits in the AudioFormat,
+        // we need to convert our read byte[] to short[]
+        // (see source from FFmpegFrameRecorder.recordSamples for AV_SAMPLE_FMT_S16)
+        // Let's initialize our short[] array
+        int nSamplesRead = nBytesRead / 2;
+        short[] samples = new short[nSamplesRead];
+
+        // Let's wrap our short[] into a ShortBuffer and
+        // pass it to recordSamples
+        ByteBuffer.wrap(audioBytes).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().get(samples);
+        ShortBuffer sBuff = ShortBuffer.wrap(samples, 0, nSamplesRead);
+
+        // recorder is instance of
+        // org.bytedeco.javacv.FFmpegFrameRecorder
+        long t0 = System.nanoTime();
+        recorder.recordSamples(sampleRate, numChannels, sBuff);
+        stats.record(CaptureStats.Stage.AUDIO, System.nanoTime() - t0);
+        stats.audioChunk();
+
+        chunkEvent.end();
+        if (chunkEvent.shouldCommit()) {
+            chunkEvent.bytes = nBytesRead;
+            chunkEvent.samples = nSamplesRead / numChannels;
+            chunkEvent.sampleRate = sampleRate;
+            chunkEvent.commit();
+        }
+        return nBytesRead;
     }
     
-    @SuppressWarnings("Convert2Lambda")
-    public void startRecording(){        
-        setup();
-            
-        process = new Thread(this);
-        process.start();
+    /**
+     * Moves what the mixer has due to the encoder.
+     * @return the count of bytes mixed, 0 if nothing was due
+     * @throws org.bytedeco.javacv.FrameRecorder.Exception if the encoder fails
+     */
+    private int pumpMixer() throws org.bytedeco.javacv.FrameRecorder.Exception {
+        AudioChunkEvent chunkEvent = new AudioChunkEvent();
+        chunkEvent.begin();
+        int frames = audioMixer.mix();
+        if (frames == 0) return 0;
+        
+        final int sampleRate = (int) audioMixer.getFormat().getSampleRate();
+        final int numChannels = audioMixer.getFormat().getChannels();
+        
+        long t0 = System.nanoTime();
+        recorder.recordSamples(sampleRate, numChannels, audioMixer.getOutput());
+        stats.record(CaptureStats.Stage.AUDIO, System.nanoTime() - t0);
+        stats.audioChunk();
+
+        chunkEvent.end();
+        if (chunkEvent.shouldCommit()) {
+            chunkEvent.bytes = frames * numChannels * 2;
+            chunkEvent.samples = frames;
+            chunkEvent.sampleRate = sampleRate;
+            chunkEvent.commit();
+        }
+        return frames * numChannels * 2;
+    }
+    
+    /**
+     * Does everything that takes time before the first frame: encoder and
+     * muxer opened, audio line opened, robot and buffers allocated, capture
+     * thread waiting. {@link #startRecording()} then only lets it go.
+     * Called by {@link #startRecording()} if needed.
+     * @return false if the recording can't be prepared, the failure is in
+     * {@link #getFinalization()}
+     */
+    public synchronized boolean arm(){
+        if(armed) return true;
+        if(isFinished()) return false;
         
-        onLoop = true;        
+        // In lazy mode, FFmpeg is loaded by the first recording
+        try {
+            Natives.load();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            finish(ex);
+            return false;
+        }
+        
+        // The frames of the source decide the size of the encoder
+        try {
+            if(source == null){
+                source = new ScreenSource();
+            }
+        } catch (AWTException ex) {
+            Logger.getLogger(CaptureAV.class.getName()).log(Level.SEVERE, null, ex);
+            finish(ex);
+            return false;
+        }
+        frameSize = source.getSize(r);
+        setup();
         
         try {
             // Jack 'n coke... do it...
+            // The recorder must be started before the first frame comes
             recorder.start();           
             
-        } catch (FFmpegFrameRecorder.Exception ex) {
+            if(audioChannels() == 0){
+                // Nothing to open
+            }else if(audioMixer != null){
+                audioMixer.open();
+            }else{
+                openLine();
+            }
+            
+            // One BGR image for the whole recording
+            bgrImage = new BufferedImage(frameSize.width, frameSize.height, BufferedImage.TYPE_3BYTE_BGR);
+        } catch (FFmpegFrameRecorder.Exception | LineUnavailableException ex) {
             Logger.getLogger(CaptureAV.class.getName()).log(Level.SEVERE, null, ex);
+            finish(ex);
+            return false;
+        }
+        
+        // No file in replay mode, nothing to index
+        if(seekIndexed && replay == null){
+            try {
+                seekIndex = new SeekIndex(media);
+            } catch (IOException ex) {
+                // The recording doesn't need its index
+                Logger.getLogger(CaptureAV.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+        
+        // The flag raised before the thread looks at it, unless a stop came
+        // while preparing: the thread then only finalizes
+        synchronized(pauseLock){
+            onLoop = !stopRequested;
+        }
+        armed = true;
+            
+        process = new Thread(this, "Capture");
+        process.start();
+        return true;
+    }
+    
+    public boolean isArmed() {
+        return armed;
+    }
+    
+    /**
+     * @return true once the go is given, by start or by stop
+     */
+    public boolean isStarted() {
+        return go.getCount() == 0;
+    }
+    
+    public void startRecording(){        
+        if(!arm()) return;
+        if(go.getCount() == 0) return;
+        
+        if(audioChannels() > 0){
+            startAudio();
+        }
+        go.countDown();
+    }
+    
+    /**
+     * Asks the capture to end, returns at once: the capture thread finishes
+     * its frame, then drains the audio, flushes the encoders and writes the
+     * trailer on its own.
+     * @return the end of the recording, to follow or wait for
+     */
+    public Finalization stopRecording(){
+        synchronized(pauseLock){
+            stopRequested = true;
+            onLoop = false;
+            // A paused capture must wake up to finalize
+            pauseLock.notifyAll();
+        }
+        // An armed capture too
+        go.countDown();
+        return finalization;
+    }
+    
+    /**
+     * Stops grabbing and encoding, the encoder and the file stay open.
+     */
+    public void pause(){
+        synchronized(pauseLock){
+            if(paused || !onLoop) return;
+            pauseStart = clock.millis();
+            paused = true;
+        }
+    }
+    
+    /**
+     * Goes on from the next frame, the timestamps are shifted by the time
+     * spent in pause so that the file has no gap.
+     */
+    public void resume(){
+        synchronized(pauseLock){
+            if(!paused) return;
+            long elapsed = clock.millis() - pauseStart;
+            pausedMillis += elapsed;
+            stats.resumed(elapsed * 1_000_000L);
+            audioResync = true;
+            paused = false;
+            pauseLock.notifyAll();
+        }
+    }
+    
+    public boolean isPaused() {
+        return paused;
+    }
+    
+    private void awaitResume() throws InterruptedException {
+        synchronized(pauseLock){
+            while(paused && onLoop){
+                pauseLock.wait();
+            }
+        }
+    }
+    
+    /**
+     * Parks the capture thread until the next timelapse grab is due, woken
+     * up early by a stop. A pause that starts meanwhile holds the grab until
+     * resume. Grabs missed by a slow capture or a pause are skipped, not
+     * caught up with a burst of frames.
+     * @return false if the capture was stopped
+     */
+    private boolean awaitNextGrab() throws InterruptedException {
+        synchronized(pauseLock){
+            nextGrab += timelapseMillis;
+            while(onLoop){
+                long wait = nextGrab - clock.millis();
+                if(paused){
+                    pauseLock.wait();
+                }else if(wait > 0){
+                    pauseLock.wait(wait);
+                }else{
+                    break;
+                }
+            }
+            long now = clock.millis();
+            if(now - nextGrab >= timelapseMillis){
+                nextGrab = now;
+            }
+            return onLoop;
         }
     }
     
-    public void stopRecording(){
-        onLoop = false;
+    /**
+     * Waits for the end of the recording, the file being finalized.
+     * @param timeout the maximum time to wait
+     * @param unit the unit of the timeout
+     * @return true if the recording is over, false on timeout
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return finished.await(timeout, unit);
+    }
+    
+    /**
+     * @return true once the recording is over and the file finalized
+     */
+    public boolean isFinished(){
+        return finished.getCount() == 0;
+    }
+    
+    /**
+     * @return the end of the recording, completed once the file is written
+     */
+    public Finalization getFinalization() {
+        return finalization;
+    }
+    
+    /**
+     * Dumps the content of the replay ring, the encoder keeps running.
+     * @param output the MP4 or MKV file to create
+     * @throws IOException if this capture is not in replay mode or the file
+     * can't be written
+     */
+    public void saveReplay(File output) throws IOException {
+        if(replay == null) throw new IOException("Not in replay mode");
+        replay.save(output);
     }
     
     private void doLoop(){
@@ -240,59 +840,239 @@ public class CaptureAV implements Runnable {
             Frame capturedFrame;
             
             // While we are capturing...
-            while ((capturedFrame = fromRobot()) != null)
+            while ((capturedFrame = fromSource()) != null)
             {
-                
                 // Let's define our start time...
                 // This needs to be initialized as close to when we'll use it as
                 // possible,
                 // as the delta from assignment to computed time could be too high
-                if (startTime == 0)
-                    startTime = System.currentTimeMillis();
+                if (startTime == 0){
+                    startTime = clock.millis();
+                    nextGrab = startTime;
+                    stats.start();
+                }
                 
-                // Create timestamp for this frame
-                videoTS = 1000 * (System.currentTimeMillis() - startTime);
+                // Create timestamp for this frame: in a timelapse, the
+                // frame number, the recorder never has to jump
+                videoTS = timelapseMillis > 0
+                        ? framesRecorded * getFrameMicros()
+                        : 1000 * (clock.millis() - startTime - pausedMillis);
                 
                 // Check for AV drift
-                if (videoTS > recorder.getTimestamp())
+                long recorderTS = recorder.getTimestamp();
+                if (videoTS > recorderTS)
                 {
-                    System.out.println(
-                            "Lip-flap correction: "
-                                    + videoTS + " : "
-                                    + recorder.getTimestamp() + " -> "
-                                    + (videoTS - recorder.getTimestamp()));
+                    Logger.getLogger(CaptureAV.class.getName()).log(Level.FINE,
+                            "Lip-flap correction: {0} : {1} -> {2}",
+                            new Object[]{ videoTS, recorderTS, videoTS - recorderTS });
+                    
+                    // The slots jumped over are frames we didn't capture in time
+                    long dropped = (videoTS - recorderTS) / getFrameMicros();
+                    stats.framesDropped(dropped);
+                    
+                    TimestampCorrectionEvent correction = new TimestampCorrectionEvent();
+                    if (correction.shouldCommit()) {
+                        correction.videoTimestamp = videoTS;
+                        correction.recorderTimestamp = recorderTS;
+                        correction.correction = videoTS - recorderTS;
+                        correction.framesDropped = dropped;
+                        correction.commit();
+                    }
                     
                     // We tell the recorder to write this frame at this timestamp
                     recorder.setTimestamp(videoTS);
                 }
+                else if (recorderTS - videoTS >= getFrameMicros())
+                {
+                    // Captured faster than the frame rate: this frame takes
+                    // a slot in the future, its own slot was already filled
+                    stats.frameDuplicated();
+                }
+                
+                // A new GOP starts, let the replay ring cut here
+                if(replay != null && framesRecorded % getGopLength() == 0){
+                    replay.markKeyframe();
+                }
                 
                 // Send the frame to the org.bytedeco.javacv.FFmpegFrameRecorder
+                EncodeEvent encodeEvent = new EncodeEvent();
+                encodeEvent.begin();
+                long pts = recorder.getTimestamp();
+                long t0 = System.nanoTime();
                 recorder.record(capturedFrame);
+                long t1 = System.nanoTime();
+                stats.record(CaptureStats.Stage.ENCODE, t1 - t0);
+                stats.record(CaptureStats.Stage.TOTAL, t1 - grabbedNanos);
+                
+                encodeEvent.end();
+                if (encodeEvent.shouldCommit()) {
+                    encodeEvent.frameNumber = framesRecorded;
+                    encodeEvent.timestamp = recorder.getTimestamp();
+                    encodeEvent.bytes = (long)capturedFrame.imageStride * capturedFrame.imageHeight;
+                    encodeEvent.commit();
+                }
+                
+                // Filmstrip from the image just encoded, overlays included,
+                // out of the encode timing
+                if(seekIndex != null){
+                    seekIndex.frame(pts, capturedFrame);
+                }
+                stats.frameRecorded();
+                framesRecorded++;
                 
                 if(!onLoop) break;
+                
+                // Paused: no grab, no encode, until resume or stop
+                awaitResume();
+                if(!onLoop) break;
+                
+                // Timelapse: asleep until the next grab
+                if(timelapseMillis > 0 && !awaitNextGrab()) break;
             }
-            recorder.stop();
-            process.interrupt();
-            process = null;
-        } catch (FFmpegFrameRecorder.Exception | AWTException ex) {
+            finish(null);
+        } catch (FFmpegFrameRecorder.Exception | InterruptedException ex) {
             Logger.getLogger(CaptureAV.class.getName()).log(Level.SEVERE, null, ex);
+            finish(ex);
+        } finally {
+            onLoop = false;
+            process = null;
         }
     }
     
-    private Frame fromRobot() throws AWTException{
-        Robot robot = new Robot();
-        BufferedImage image = robot.createScreenCapture(r);
-        BufferedImage img2 = new BufferedImage(r.width, r.height, BufferedImage.TYPE_3BYTE_BGR);
-        for(int y=0; y<r.height; y++){
-            for(int x=0; x<r.width; x++){
-                img2.setRGB(x, y, image.getRGB(x, y));
+    /**
+     * Ends the recording on the capture thread, stage by stage. Everything
+     * is released even when a stage fails.
+     * @param failure what stopped the capture, null on a normal stop
+     */
+    private void finish(Exception failure){
+        Exception error = failure;
+        try {
+            finalization.advance(Finalization.Stage.DRAINING);
+            if(audioExec != null){
+                audioExec.shutdown();
+                audioExec.awaitTermination(1, TimeUnit.SECONDS);
             }
-        }        
-        return converter.convert(img2);
+            if(audioChannels() == 0){
+                // No audio stream, nothing to drain
+            }else if(line != null){
+                // What was captured before the stop still goes in the file
+                line.stop();
+                if(error == null){
+                    while(pumpAudio() > 0){
+                    }
+                }
+            }else if(audioMixer != null && audioMixer.isStarted()){
+                audioMixer.stop();
+                if(error == null){
+                    while(pumpAudio() > 0){
+                    }
+                }
+            }
+            
+            // No recorder if the natives failed to load
+            if(recorder != null){
+                if(error == null){
+                    finalization.advance(Finalization.Stage.FLUSHING);
+                    recorder.flush();
+                }
+
+                // The trailer, and the native encoder and muxer are freed
+                finalization.advance(Finalization.Stage.FINALIZING);
+                recorder.stop();
+            }
+        } catch (org.bytedeco.javacv.FrameRecorder.Exception ex) {
+            Logger.getLogger(CaptureAV.class.getName()).log(Level.SEVERE, null, ex);
+            if(error == null) error = ex;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            if(error == null) error = ex;
+        } finally {
+            finalization.advance(Finalization.Stage.RELEASING);
+            if(audioExec != null){
+                audioExec.shutdownNow();
+            }
+            if(line != null){
+                line.close();
+            }
+            if(audioMixer != null){
+                audioMixer.close();
+            }
+            try {
+                if(recorder != null) recorder.release();
+            } catch (FFmpegFrameRecorder.Exception ex) {
+                Logger.getLogger(CaptureAV.class.getName()).log(Level.SEVERE, null, ex);
+            }
+            converter.close();
+            if(seekIndex != null){
+                seekIndex.close();
+            }
+            
+            // The result first: awaitTermination() never wakes up to a
+            // future still incomplete
+            if(error == null){
+                finalization.advance(Finalization.Stage.DONE);
+                finalization.complete(media);
+            }else{
+                finalization.completeExceptionally(error);
+            }
+            finished.countDown();
+        }
+    }
+    
+    private Frame fromSource(){
+        // Source and BGR image come from arm()
+        FrameGrabEvent grabEvent = new FrameGrabEvent();
+        grabEvent.begin();
+        long t0 = System.nanoTime();
+        BufferedImage image = source.capture(r);
+        long t1 = System.nanoTime();
+        grabbedNanos = t1;
+        stats.record(CaptureStats.Stage.GRAB, t1 - t0);
+        stats.frameCaptured();
+        grabEvent.end();
+        if(grabEvent.shouldCommit()){
+            grabEvent.width = frameSize.width;
+            grabEvent.height = frameSize.height;
+            grabEvent.commit();
+        }
+        
+        FrameConvertEvent convertEvent = new FrameConvertEvent();
+        convertEvent.begin();
+        // A Java2D blit instead of a getRGB/setRGB per pixel
+        Graphics2D g2d = bgrImage.createGraphics();
+        g2d.drawImage(image, 0, 0, null);
+        g2d.dispose();
+        Frame frame = converter.convert(bgrImage);
+        // Cursor, webcam... straight into the frame buffer
+        for(FrameOverlay overlay : overlays){
+            overlay.apply(frame, r);
+        }
+        stats.record(CaptureStats.Stage.CONVERT, System.nanoTime() - t1);
+        convertEvent.end();
+        if(convertEvent.shouldCommit()){
+            convertEvent.bytes = (long)frame.imageStride * frame.imageHeight;
+            convertEvent.overlays = overlays.size();
+            convertEvent.commit();
+        }
+        return frame;
     }
 
     @Override
     public void run() {
+        try {
+            go.await();
+        } catch (InterruptedException ex) {
+            onLoop = false;
+        }
+        if(!onLoop){
+            // Disarmed without recording anything
+            finish(null);
+            if(media != null && framesRecorded == 0){
+                media.delete();
+                SeekIndex.sidecarOf(media).delete();
+            }
+            return;
+        }
         while(onLoop){
             doLoop();
         }
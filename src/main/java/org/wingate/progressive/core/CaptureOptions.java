@@ -0,0 +1,276 @@
+/*
+ * Copyright (C) 2023 util2
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.wingate.progressive.core;
+
+import java.awt.Dimension;
+import java.awt.GraphicsEnvironment;
+import java.awt.Rectangle;
+import java.io.File;
+import java.util.Map;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.Mixer;
+
+/**
+ * Settings of a recording given as text (command line, control API), turned
+ * into a {@link CaptureAV} without any Swing component. Keys are region
+ * (x,y,w,h), output, format (mp4, mkv), fps, preset, crf, audio (device
+ * name, several names separated by commas to mix them, or "none"),
+ * audio-codec (aac, opus, flac), index (false for no seek index), size
+ * (wxh, to scale the video), timelapse (seconds between two frames) and
+ * stream (rtmp://, srt://, udp:// url).
+ *
+ * @author util2
+ */
+public class CaptureOptions {
+
+    private Rectangle region = null;
+    private File output = null;
+    private FileType format = null;
+    private int fps = CaptureAV.FRAME_RATE;
+    // Null until given, the calibration may choose it then
+    private String preset = null;
+    private int crf = CaptureAV.CRF;
+    private String audio = null;
+    private AudioCodec audioCodec = AudioCodec.AAC;
+    private String stream = null;
+    private boolean index = true;
+    private Dimension size = null;
+    private long timelapse = 0;
+
+    public CaptureOptions() {
+    }
+
+    /**
+     * @param values the settings by key
+     * @return the parsed settings
+     * @throws IllegalArgumentException if a value is invalid or the output
+     * is missing
+     */
+    public static CaptureOptions parse(Map<String, String> values){
+        CaptureOptions o = new CaptureOptions();
+        for(Map.Entry<String, String> entry : values.entrySet()){
+            String v = entry.getValue();
+            switch(entry.getKey()){
+                case "region" -> o.region = parseRegion(v);
+                case "output" -> o.output = new File(v);
+                case "format" -> o.format = FileType.valueOf(v.toUpperCase());
+                case "fps" -> o.fps = parsePositive("fps", v);
+                case "preset" -> o.preset = v;
+                case "crf" -> o.crf = Integer.parseInt(v);
+                case "audio" -> o.audio = v.equalsIgnoreCase("none") ? null : v;
+                case "audio-codec" -> o.audioCodec = AudioCodec.valueOf(v.toUpperCase());
+                case "stream" -> o.stream = v;
+                case "index" -> o.index = Boolean.parseBoolean(v);
+                case "size" -> o.size = parseSize(v);
+                case "timelapse" -> o.timelapse = parseInterval(v);
+                default -> throw new IllegalArgumentException("Unknown option: " + entry.getKey());
+            }
+        }
+        if(o.output == null){
+            throw new IllegalArgumentException("Missing option: output");
+        }
+        return o;
+    }
+
+    private static Rectangle parseRegion(String v){
+        String[] parts = v.split(",");
+        if(parts.length != 4){
+            throw new IllegalArgumentException("Region must be x,y,w,h: " + v);
+        }
+        Rectangle rect = new Rectangle(
+                Integer.parseInt(parts[0].trim()),
+                Integer.parseInt(parts[1].trim()),
+                Integer.parseInt(parts[2].trim()),
+                Integer.parseInt(parts[3].trim())
+        );
+        if(rect.isEmpty()){
+            throw new IllegalArgumentException("Empty region: " + v);
+        }
+        return rect;
+    }
+
+    private static Dimension parseSize(String v){
+        String[] parts = v.toLowerCase().split("x");
+        if(parts.length != 2){
+            throw new IllegalArgumentException("Size must be wxh: " + v);
+        }
+        return new Dimension(
+                parsePositive("width", parts[0].trim()),
+                parsePositive("height", parts[1].trim())
+        );
+    }
+
+    private static long parseInterval(String v){
+        long millis = Math.round(Double.parseDouble(v) * 1000);
+        if(millis <= 0) throw new IllegalArgumentException("timelapse must be positive: " + v);
+        return millis;
+    }
+
+    private static int parsePositive(String key, String v){
+        int n = Integer.parseInt(v);
+        if(n <= 0) throw new IllegalArgumentException(key + " must be positive: " + v);
+        return n;
+    }
+
+    /**
+     * @param name the name of an audio device
+     * @return the matching mixer, exact name first then a partial match
+     */
+    public static Mixer.Info findMixer(String name){
+        Mixer.Info partial = null;
+        for(Mixer.Info info : AudioSystem.getMixerInfo()){
+            if(info.getName().equals(name)) return info;
+            if(partial == null && info.getName().toLowerCase().contains(name.toLowerCase())){
+                partial = info;
+            }
+        }
+        return partial;
+    }
+
+    /**
+     * @return the file to write, with the extension of the format
+     */
+    public File getMediaFile(){
+        if(format == null) return output;
+        String ext = "." + format.toString().toLowerCase();
+        return output.getName().toLowerCase().endsWith(ext)
+                ? output
+                : new File(output.getPath() + ext);
+    }
+
+    /**
+     * @return the region to record, the primary screen by default
+     */
+    public Rectangle getRegion(){
+        if(region != null) return region;
+        return GraphicsEnvironment.getLocalGraphicsEnvironment()
+                .getDefaultScreenDevice().getDefaultConfiguration().getBounds();
+    }
+
+    /**
+     * Builds the capture, nothing is started.
+     * @return a capture configured with these settings
+     * @throws IllegalArgumentException if an audio device doesn't exist
+     */
+    public CaptureAV createCapture(){
+        String[] names = audio == null ? new String[0] : audio.split(",");
+        Mixer.Info[] mixers = new Mixer.Info[names.length];
+        for(int i=0; i<names.length; i++){
+            mixers[i] = findMixer(names[i].trim());
+            if(mixers[i] == null){
+                throw new IllegalArgumentException("No audio device: " + names[i].trim());
+            }
+        }
+        CaptureAV capture = new CaptureAV(getMediaFile(), getRegion(), mixers.length == 0 ? null : mixers[0]);
+        if(mixers.length > 0){
+            // The rate of the first device, no resampling in the OS
+            AudioFormat format = AudioDevices.probe(mixers[0]);
+            if(format == null){
+                throw new IllegalArgumentException("Not a capture device: " + names[0].trim());
+            }
+            capture.setAudioFormat(format);
+        }
+        if(mixers.length > 1){
+            // The others are captured at the same rate and mixed in
+            AudioMixer audioMixer = new AudioMixer(capture.getAudioFormat());
+            try {
+                for(Mixer.Info mixer : mixers){
+                    audioMixer.addSource(mixer, 1f);
+                }
+            } catch (LineUnavailableException ex) {
+                throw new IllegalArgumentException(ex.getMessage(), ex);
+            }
+            capture.setAudioMixer(audioMixer);
+        }
+        capture.setAudioCodec(audioCodec);
+        capture.setSeekIndexed(index);
+        capture.setOutputSize(size);
+        capture.setTimelapse(timelapse);
+        capture.setFrameRate(fps);
+        capture.setPreset(getPreset());
+        capture.setCrf(crf);
+        if(stream != null){
+            capture.setStreamOutput(new StreamOutput(stream));
+        }
+        return capture;
+    }
+
+    public File getOutput() {
+        return output;
+    }
+
+    public int getFps() {
+        return fps;
+    }
+
+    public String getPreset() {
+        return preset == null ? CaptureAV.PRESET : preset;
+    }
+
+    /**
+     * Picks the preset from the measures of this machine, unless one was
+     * given.
+     * @param calibration the measures, null if there are none
+     */
+    public void applyCalibration(Calibration calibration){
+        if(preset != null || calibration == null) return;
+        Rectangle rect = getRegion();
+        // A timelapse encodes one frame per interval, the slowest preset
+        // keeps up
+        int rate = timelapse > 0 ? 1 : fps;
+        preset = size != null
+                ? calibration.getBestPreset(size.width, size.height, rate)
+                : calibration.getBestPreset(rect.width, rect.height, rate);
+    }
+
+    public int getCrf() {
+        return crf;
+    }
+
+    public String getAudio() {
+        return audio;
+    }
+
+    public AudioCodec getAudioCodec() {
+        return audioCodec;
+    }
+
+    public String getStream() {
+        return stream;
+    }
+
+    public boolean isIndex() {
+        return index;
+    }
+
+    /**
+     * @return the time between two frames in milliseconds, 0 if not a
+     * timelapse
+     */
+    public long getTimelapse() {
+        return timelapse;
+    }
+
+    /**
+     * @return the size of the video, null for the size of the region
+     */
+    public Dimension getSize() {
+        return size;
+    }
+}
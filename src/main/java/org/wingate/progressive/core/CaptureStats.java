@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2023 util2
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.wingate.progressive.core;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Live telemetry of a recording: a latency histogram per pipeline stage and
+ * the frame and audio counters. Everything is updated by the capture
+ * threads without locking and can be read at any time, by the UI or by the
+ * control API.
+ *
+ * @author util2
+ */
+public class CaptureStats {
+    
+    public enum Stage {
+        /** Screen capture (Robot) */
+        GRAB,
+        /** BGR conversion and overlays */
+        CONVERT,
+        /** Video encode, javacv also muxes the packet in the same call */
+        ENCODE,
+        /** Writing of the muxed stream, replay mode only: elsewhere the
+         * muxer writes the file itself, within ENCODE */
+        MUX,
+        /** Audio encode of one chunk */
+        AUDIO,
+        /** From the grabbed image to its packet in the file: conversion,
+         * overlays, encode and mux of one frame */
+        TOTAL;
+    }
+    
+    private final Map<Stage, LatencyHistogram> histograms = new EnumMap<>(Stage.class);
+    private final Set<Stage> stages;
+    
+    private final LongAdder framesCaptured = new LongAdder();
+    private final LongAdder framesRecorded = new LongAdder();
+    private final LongAdder framesDropped = new LongAdder();
+    private final LongAdder framesDuplicated = new LongAdder();
+    private final LongAdder audioChunks = new LongAdder();
+    private final LongAdder audioUnderruns = new LongAdder();
+    
+    private volatile long startNanos = 0;
+
+    public CaptureStats() {
+        this(EnumSet.allOf(Stage.class));
+    }
+    
+    /**
+     * @param stages the stages this recording goes through, the others
+     * stay empty and aren't shown
+     */
+    public CaptureStats(Set<Stage> stages) {
+        this.stages = Collections.unmodifiableSet(EnumSet.copyOf(stages));
+        for(Stage stage : Stage.values()){
+            histograms.put(stage, new LatencyHistogram());
+        }
+    }
+    
+    /**
+     * @return the stages measured, in pipeline order
+     */
+    public Set<Stage> getStages(){
+        return stages;
+    }
+    
+    public void start(){
+        startNanos = System.nanoTime();
+    }
+    
+    /**
+     * @param pausedNanos time spent in pause, left out of the frame rate
+     */
+    public void resumed(long pausedNanos){
+        if(startNanos != 0) startNanos += pausedNanos;
+    }
+    
+    public void record(Stage stage, long nanos){
+        histograms.get(stage).record(nanos);
+    }
+    
+    public LatencyHistogram getHistogram(Stage stage){
+        return histograms.get(stage);
+    }
+    
+    public void frameCaptured(){
+        framesCaptured.increment();
+    }
+    
+    public void frameRecorded(){
+        framesRecorded.increment();
+    }
+    
+    /**
+     * @param count frame slots skipped because the capture fell behind
+     */
+    public void framesDropped(long count){
+        framesDropped.add(count);
+    }
+    
+    /**
+     * A frame was captured for a time slot that already had one.
+     */
+    public void frameDuplicated(){
+        framesDuplicated.increment();
+    }
+    
+    public void audioChunk(){
+        audioChunks.increment();
+    }
+    
+    /**
+     * The audio line had nothing to give when the encoder asked for it.
+     */
+    public void audioUnderrun(){
+        audioUnderruns.increment();
+    }
+
+    public long getFramesCaptured() {
+        return framesCaptured.sum();
+    }
+
+    public long getFramesRecorded() {
+        return framesRecorded.sum();
+    }
+
+    public long getFramesDropped() {
+        return framesDropped.sum();
+    }
+
+    public long getFramesDuplicated() {
+        return framesDuplicated.sum();
+    }
+
+    public long getAudioChunks() {
+        return audioChunks.sum();
+    }
+
+    public long getAudioUnderruns() {
+        return audioUnderruns.sum();
+    }
+    
+    /**
+     * @return recorded frames per second since the start
+     */
+    public double getEffectiveFps(){
+        long start = startNanos;
+        if(start == 0) return 0;
+        double seconds = (System.nanoTime() - start) / 1e9;
+        return seconds <= 0 ? 0 : getFramesRecorded() / seconds;
+    }
+}
@@ -0,0 +1,332 @@
+/*
+ * Copyright (C) 2023 util2
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.wingate.progressive.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import org.bytedeco.ffmpeg.avcodec.AVPacket;
+import org.bytedeco.ffmpeg.avformat.AVFormatContext;
+import org.bytedeco.ffmpeg.avformat.AVIOContext;
+import org.bytedeco.ffmpeg.avformat.AVStream;
+import org.bytedeco.ffmpeg.avutil.AVDictionary;
+import org.bytedeco.ffmpeg.avutil.AVRational;
+import org.bytedeco.ffmpeg.global.avcodec;
+import org.bytedeco.ffmpeg.global.avformat;
+import org.bytedeco.ffmpeg.global.avutil;
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+import org.bytedeco.javacv.FFmpegFrameRecorder;
+import org.bytedeco.javacv.Frame;
+
+/**
+ * Encodes one long recording in pieces on several encoders at once, for
+ * files where a single encoder can't use all the cores. The source is cut
+ * on its own keyframes, so each piece starts decoding without waste, and
+ * each piece starts with a keyframe of its own. The audio is encoded apart
+ * in one pass, so there are no gaps or priming at the cuts. The pieces and
+ * the audio are then muxed into the archive packet by packet, nothing is
+ * encoded twice.
+ *
+ * @author util2
+ */
+class ChunkedTranscode {
+
+    // An encoder scales almost linearly up to 2 threads
+    private final static int CHUNK_THREADS = 2;
+    // Below that, the cost of a cut (a keyframe, a seek) isn't worth it
+    private final static long MIN_CHUNK_MICROS = 30_000_000L;
+    // More pieces than encoders, so that a slow piece doesn't hold the end
+    private final static int CHUNKS_PER_WORKER = 2;
+    private final static AVRational MICROS = avutil.av_make_q(1, 1_000_000);
+
+    private final TranscodeJob job;
+    private final int workers;
+
+    /**
+     * @param job the job to run
+     * @param threads the encoder threads this job may use
+     */
+    ChunkedTranscode(TranscodeJob job, int threads) {
+        this.job = job;
+        this.workers = Math.max(1, threads / CHUNK_THREADS);
+    }
+
+    /**
+     * Writes the .part file of the job.
+     * @return false if the file is too short or the machine too small to
+     * cut it, nothing is written then
+     * @throws IOException if a piece or the concatenation fails
+     */
+    boolean run() throws IOException {
+        if(workers < 2) return false;
+        long length;
+        boolean audio;
+        try (FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(job.getInput())) {
+            grabber.start();
+            length = grabber.getLengthInTime();
+            audio = grabber.getAudioChannels() > 0;
+            grabber.stop();
+        }
+        long[] cuts = plan(length);
+        if(cuts.length < 3) return false;
+
+        int count = cuts.length - 1;
+        List<File> pieces = new ArrayList<>();
+        for(int i=0; i<count; i++){
+            pieces.add(new File(job.getOutput().getPath() + ".part" + i));
+        }
+        File audioPiece = audio ? new File(job.getOutput().getPath() + ".parta") : null;
+
+        AtomicLongArray done = new AtomicLongArray(count);
+        List<Callable<Void>> tasks = new ArrayList<>();
+        if(audio){
+            // First, it is the longest task
+            tasks.add(() -> {
+                encodeAudio(audioPiece);
+                return null;
+            });
+        }
+        for(int i=0; i<count; i++){
+            int n = i;
+            tasks.add(() -> {
+                encodeVideo(pieces.get(n), cuts[n], cuts[n + 1], done, n, length);
+                return null;
+            });
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(workers);
+        CompletionService<Void> completion = new ExecutorCompletionService<>(pool);
+        List<Future<Void>> futures = new ArrayList<>();
+        try {
+            for(Callable<Void> task : tasks){
+                futures.add(completion.submit(task));
+            }
+            // In the order they end: the first failure stops the others
+            // right away instead of after every piece is encoded
+            for(int i=0; i<futures.size(); i++){
+                completion.take().get();
+            }
+            if(!job.isCancelled()){
+                concat(pieces, cuts, audioPiece);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            job.cancel();
+        } catch (ExecutionException ex) {
+            job.cancel();
+            throw ex.getCause() instanceof IOException io ? io : new IOException(ex.getCause());
+        } finally {
+            for(Future<Void> future : futures){
+                future.cancel(true);
+            }
+            pool.shutdownNow();
+            // The pieces see the cancel between two frames, their files
+            // are closed before being removed
+            try {
+                pool.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            for(File piece : pieces){
+                piece.delete();
+            }
+            if(audioPiece != null) audioPiece.delete();
+        }
+        return true;
+    }
+
+    /**
+     * @param length the duration of the source
+     * @return the start of each piece on a keyframe of the source, then the
+     * end of the source
+     */
+    private long[] plan(long length) throws IOException {
+        int count = (int) Math.min((long) workers * CHUNKS_PER_WORKER, length / MIN_CHUNK_MICROS);
+        if(count < 2) return new long[0];
+        List<SeekIndex.Entry> keyframes = SeekIndex.keyframes(job.getInput());
+
+        List<Long> cuts = new ArrayList<>();
+        cuts.add(0L);
+        for(int i=1; i<count; i++){
+            long target = length * i / count;
+            // The last keyframe before the target, if it makes a new piece
+            long best = -1;
+            for(SeekIndex.Entry entry : keyframes){
+                if(entry.getPts() > target) break;
+                best = entry.getPts();
+            }
+            if(best > cuts.get(cuts.size() - 1)) cuts.add(best);
+        }
+        cuts.add(Long.MAX_VALUE);
+
+        long[] result = new long[cuts.size()];
+        for(int i=0; i<result.length; i++){
+            result[i] = cuts.get(i);
+        }
+        return result;
+    }
+
+    private void encodeVideo(File piece, long start, long end, AtomicLongArray done, int n, long length) throws IOException {
+        try (FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(job.getInput())) {
+            grabber.setPixelFormat(avutil.AV_PIX_FMT_YUV420P);
+            grabber.start();
+            if(start > 0) grabber.setVideoTimestamp(start);
+
+            try (FFmpegFrameRecorder recorder = job.createRecorder(piece, grabber, true, false, CHUNK_THREADS)) {
+                recorder.start();
+                Frame frame;
+                while(!job.isCancelled() && (frame = grabber.grabImage()) != null){
+                    if(frame.timestamp >= end) break;
+                    // Each piece starts at 0, the cut is added back when muxed
+                    long t = frame.timestamp - start;
+                    if(t < 0) continue;
+                    if(t > recorder.getTimestamp()){
+                        recorder.setTimestamp(t);
+                    }
+                    recorder.record(frame, grabber.getPixelFormat());
+                    done.set(n, t);
+                    updateProgress(done, length);
+                }
+                recorder.stop();
+            }
+            grabber.stop();
+        }
+    }
+
+    private void updateProgress(AtomicLongArray done, long length){
+        long sum = 0;
+        for(int i=0; i<done.length(); i++){
+            sum += done.get(i);
+        }
+        job.setProgress(Math.min(1, sum / (double) Math.max(1, length)));
+    }
+
+    private void encodeAudio(File piece) throws IOException {
+        try (FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(job.getInput())) {
+            grabber.start();
+            try (FFmpegFrameRecorder recorder = job.createRecorder(piece, grabber, false, true, 1)) {
+                recorder.start();
+                Frame frame;
+                while(!job.isCancelled() && (frame = grabber.grabSamples()) != null){
+                    recorder.record(frame);
+                }
+                recorder.stop();
+            }
+            grabber.stop();
+        }
+    }
+
+    /**
+     * Muxes the pieces one after the other, shifted by their cut, and the
+     * audio beside them, in the order of their timestamps.
+     */
+    private void concat(List<File> pieces, long[] cuts, File audioPiece) throws IOException {
+        File part = job.getPartFile();
+        FFmpegFrameGrabber audio = null;
+        FFmpegFrameGrabber video = null;
+        AVFormatContext oc = new AVFormatContext(null);
+        check(avformat.avformat_alloc_output_context2(oc, null, job.getFormat(), part.getPath()), "output");
+        try {
+            video = open(pieces.get(0));
+            AVStream ovs = addStream(oc, video.getFormatContext().streams(0));
+            AVStream oas = null;
+            if(audioPiece != null){
+                audio = open(audioPiece);
+                oas = addStream(oc, audio.getFormatContext().streams(0));
+            }
+            AVIOContext pb = new AVIOContext(null);
+            check(avformat.avio_open(pb, part.getPath(), avformat.AVIO_FLAG_WRITE), "open " + part);
+            oc.pb(pb);
+            check(avformat.avformat_write_header(oc, (AVDictionary) null), "header");
+
+            int piece = 0;
+            AVPacket vp = video.grabPacket();
+            AVPacket ap = audio == null ? null : audio.grabPacket();
+            long lastDts = Long.MIN_VALUE;
+            while(!job.isCancelled() && (vp != null || ap != null)){
+                if(vp == null && piece + 1 < pieces.size()){
+                    video.close();
+                    video = open(pieces.get(++piece));
+                    vp = video.grabPacket();
+                    continue;
+                }
+                AVRational vtb = vp == null ? null : video.getFormatContext().streams(0).time_base();
+                AVRational atb = ap == null ? null : audio.getFormatContext().streams(0).time_base();
+                long vt = vp == null ? Long.MAX_VALUE
+                        : avutil.av_rescale_q(vp.dts(), vtb, MICROS) + cuts[piece];
+                long at = ap == null ? Long.MAX_VALUE
+                        : avutil.av_rescale_q(ap.dts(), atb, MICROS);
+
+                if(vt <= at){
+                    AVRational otb = ovs.time_base();
+                    long shift = avutil.av_rescale_q(cuts[piece], MICROS, otb);
+                    avcodec.av_packet_rescale_ts(vp, vtb, otb);
+                    vp.pts(vp.pts() + shift);
+                    vp.dts(vp.dts() + shift);
+                    // Rounding at a cut must not step back
+                    if(vp.dts() <= lastDts) vp.dts(Math.min(lastDts + 1, vp.pts()));
+                    lastDts = vp.dts();
+                    vp.stream_index(ovs.index());
+                    vp.pos(-1);
+                    check(avformat.av_interleaved_write_frame(oc, vp), "video packet");
+                    vp = video.grabPacket();
+                }else{
+                    avcodec.av_packet_rescale_ts(ap, atb, oas.time_base());
+                    ap.stream_index(oas.index());
+                    ap.pos(-1);
+                    check(avformat.av_interleaved_write_frame(oc, ap), "audio packet");
+                    ap = audio.grabPacket();
+                }
+            }
+            check(avformat.av_write_trailer(oc), "trailer");
+        } finally {
+            if(oc.pb() != null) avformat.avio_closep(oc.pb());
+            avformat.avformat_free_context(oc);
+            if(video != null) video.close();
+            if(audio != null) audio.close();
+        }
+    }
+
+    private static FFmpegFrameGrabber open(File file) throws IOException {
+        FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(file);
+        grabber.start();
+        return grabber;
+    }
+
+    private static AVStream addStream(AVFormatContext oc, AVStream in) throws IOException {
+        AVStream out = avformat.avformat_new_stream(oc, null);
+        if(out == null) throw new IOException("Can't add a stream");
+        check(avcodec.avcodec_parameters_copy(out.codecpar(), in.codecpar()), "stream");
+        out.codecpar().codec_tag(0);
+        out.time_base(in.time_base());
+        out.avg_frame_rate(in.avg_frame_rate());
+        return out;
+    }
+
+    private static void check(int ret, String what) throws IOException {
+        if(ret < 0) throw new IOException("Concatenation failed (" + what + "): error " + ret);
+    }
+}
@@ -0,0 +1,410 @@
+/*
+ * Copyright (C) 2023 util2
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.wingate.progressive.core;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.HexFormat;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Local HTTP endpoint to drive recordings from scripts. It only listens on
+ * the loopback interface and answers in JSON:
+ * <pre>
+ * POST /sessions?output=a.mp4&amp;region=0,0,1280,720  start, returns the id
+ *      (with arm=true, only prepared until /start)
+ * POST /sessions/{id}/start                       start an armed session
+ * GET  /sessions                                  every session
+ * GET  /sessions/{id}                             state and counters
+ * POST /sessions/{id}/pause                       pause, the file stays open
+ * POST /sessions/{id}/resume                      resume without a gap
+ * POST /sessions/{id}/stop                        stop and finalize
+ * GET  /sessions/{id}/metrics                     one JSON line per second
+ * </pre>
+ * Every request must carry {@code Authorization: Bearer <token>}, the token
+ * being drawn at start and written to {@link #TOKEN_FILE_NAME}, readable by
+ * the owner only: a web page can't read it, so it can't start a recording
+ * from the browser. Requests whose Host isn't the loopback are refused too,
+ * against DNS rebinding.
+ * The query keys are the ones of {@link CaptureOptions}. A session is
+ * released once its file is finalized, only its last state is kept for the
+ * most recent ones. Each request runs on
+ * a virtual thread and only reads the lock-free counters of the sessions,
+ * the capture and encoder threads are never waited on.
+ *
+ * @author util2
+ */
+public class ControlServer {
+
+    public final static String TOKEN_FILE_NAME = "control.token";
+
+    private final static long METRICS_INTERVAL_MILLIS = 1000;
+    private final static long FINALIZE_TIMEOUT_MILLIS = 30000;
+    // Finished sessions still answered, the oldest are forgotten
+    private final static int FINISHED_KEPT = 100;
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final Map<Integer, CaptureAV> sessions = new ConcurrentHashMap<>();
+    // Last state of the finished sessions, by id
+    private final Map<Integer, String> finished = Collections.synchronizedMap(new LinkedHashMap<>(){
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, String> eldest) {
+            return size() > FINISHED_KEPT;
+        }
+    });
+    private final AtomicInteger nextId = new AtomicInteger(1);
+    // Read once, the presets of the sessions come from it
+    private final Calibration calibration = Calibration.load(new File(Calibration.FILE_NAME));
+    private final File tokenFile;
+    private final byte[] token;
+
+    /**
+     * @param port the TCP port on localhost, 0 for any free port
+     * @throws IOException if the port can't be bound or the token written
+     */
+    public ControlServer(int port) throws IOException {
+        this(port, new File(TOKEN_FILE_NAME));
+    }
+
+    /**
+     * @param port the TCP port on localhost, 0 for any free port
+     * @param tokenFile where the token goes, replaced if it exists
+     * @throws IOException if the port can't be bound or the token written
+     */
+    public ControlServer(int port, File tokenFile) throws IOException {
+        this.tokenFile = tokenFile;
+        byte[] random = new byte[32];
+        new SecureRandom().nextBytes(random);
+        String hex = HexFormat.of().formatHex(random);
+        token = hex.getBytes(StandardCharsets.US_ASCII);
+        writeToken(tokenFile, hex);
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/sessions", this::handle);
+        server.setExecutor(executor);
+    }
+
+    public void start(){
+        server.start();
+    }
+
+    /**
+     * Closes the endpoint, stops every session still recording and waits
+     * for their files to be finalized.
+     */
+    public void stop(){
+        server.stop(0);
+        tokenFile.delete();
+        for(CaptureAV capture : sessions.values()){
+            capture.stopRecording();
+        }
+        // Called from a shutdown hook: the JVM must not halt mid-trailer
+        long deadline = System.currentTimeMillis() + FINALIZE_TIMEOUT_MILLIS;
+        try {
+            for(CaptureAV capture : sessions.values()){
+                long left = deadline - System.currentTimeMillis();
+                if(left <= 0 || !capture.awaitTermination(left, TimeUnit.MILLISECONDS)) break;
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        executor.shutdown();
+    }
+
+    /**
+     * @return the port listened to
+     */
+    public int getPort(){
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * @return the file the clients read the token from
+     */
+    public File getTokenFile(){
+        return tokenFile;
+    }
+
+    private static void writeToken(File file, String hex) throws IOException {
+        // Created empty and private before the token goes in
+        file.delete();
+        try {
+            Files.createFile(file.toPath(), PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } catch (UnsupportedOperationException ex) {
+            // Not POSIX (Windows): owner only by hand
+            Files.createFile(file.toPath());
+            file.setReadable(false, false);
+            file.setWritable(false, false);
+            file.setReadable(true, true);
+            file.setWritable(true, true);
+        } catch (FileAlreadyExistsException ex) {
+            throw new IOException("Token file recreated meanwhile: " + file, ex);
+        }
+        Files.writeString(file.toPath(), hex, StandardCharsets.US_ASCII, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    /**
+     * @return false, and the answer sent, if the request doesn't come from
+     * a client of this machine that read the token
+     */
+    private boolean authorize(HttpExchange exchange) throws IOException {
+        String host = exchange.getRequestHeaders().getFirst("Host");
+        if(host == null || !isLoopback(host)){
+            send(exchange, 403, error("Host must be the loopback"));
+            return false;
+        }
+        String auth = exchange.getRequestHeaders().getFirst("Authorization");
+        byte[] given = auth != null && auth.startsWith("Bearer ")
+                ? auth.substring(7).trim().getBytes(StandardCharsets.US_ASCII)
+                : new byte[0];
+        if(!MessageDigest.isEqual(given, token)){
+            send(exchange, 401, error("Missing or wrong token, see " + tokenFile.getName()));
+            return false;
+        }
+        return true;
+    }
+
+    private static boolean isLoopback(String host){
+        // Without the port, IPv6 in brackets
+        String name = host.startsWith("[")
+                ? host.substring(1, Math.max(1, host.indexOf(']')))
+                : host.contains(":") ? host.substring(0, host.indexOf(':')) : host;
+        return name.equalsIgnoreCase("localhost") || name.equals("127.0.0.1") || name.equals("::1");
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if(!authorize(exchange)) return;
+            String method = exchange.getRequestMethod();
+            String[] path = exchange.getRequestURI().getPath().split("/");
+            // "", "sessions", id, action
+            if(path.length == 2 && method.equals("GET")){
+                send(exchange, 200, listJson());
+            }else if(path.length == 2 && method.equals("POST")){
+                create(exchange);
+            }else if(path.length >= 3){
+                CaptureAV capture = findSession(path[2]);
+                String action = path.length == 3 ? "" : path[3];
+                String summary = capture == null ? findFinished(path[2]) : null;
+                if(summary != null){
+                    sendFinished(exchange, method, action, summary);
+                }else if(capture == null){
+                    send(exchange, 404, error("No session: " + path[2]));
+                }else if(action.isEmpty() && method.equals("GET")){
+                    send(exchange, 200, sessionJson(Integer.parseInt(path[2]), capture));
+                }else if(action.equals("start") && method.equals("POST")){
+                    capture.startRecording();
+                    send(exchange, 200, sessionJson(Integer.parseInt(path[2]), capture));
+                }else if(action.equals("pause") && method.equals("POST")){
+                    capture.pause();
+                    send(exchange, 200, sessionJson(Integer.parseInt(path[2]), capture));
+                }else if(action.equals("resume") && method.equals("POST")){
+                    capture.resume();
+                    send(exchange, 200, sessionJson(Integer.parseInt(path[2]), capture));
+                }else if(action.equals("stop") && method.equals("POST")){
+                    capture.stopRecording();
+                    send(exchange, 200, sessionJson(Integer.parseInt(path[2]), capture));
+                }else if(action.equals("metrics") && method.equals("GET")){
+                    streamMetrics(exchange, Integer.parseInt(path[2]), capture);
+                }else{
+                    send(exchange, 405, error("Unsupported: " + method + " " + action));
+                }
+            }else{
+                send(exchange, 404, error("Not found"));
+            }
+        } catch (IOException ex) {
+            // The client went away
+            Logger.getLogger(ControlServer.class.getName()).log(Level.FINE, null, ex);
+        }
+    }
+
+    private void create(HttpExchange exchange) throws IOException {
+        CaptureAV capture;
+        boolean armOnly;
+        try {
+            Map<String, String> values = parseQuery(exchange.getRequestURI().getRawQuery());
+            armOnly = Boolean.parseBoolean(values.remove("arm"));
+            CaptureOptions options = CaptureOptions.parse(values);
+            options.applyCalibration(calibration);
+            capture = options.createCapture();
+        } catch (IllegalArgumentException ex) {
+            send(exchange, 400, error(ex.getMessage() != null ? ex.getMessage() : ex.toString()));
+            return;
+        }
+        int id = nextId.getAndIncrement();
+        sessions.put(id, capture);
+        if(armOnly){
+            capture.arm();
+        }else{
+            capture.startRecording();
+        }
+        // Also right away if it couldn't even be armed
+        capture.getFinalization().whenComplete((file, ex) -> retire(id, capture));
+        send(exchange, 201, sessionJson(id, capture));
+    }
+
+    /**
+     * Forgets a finalized session: its buffers, source and recorder go to
+     * the GC, only its last state is kept.
+     */
+    private void retire(int id, CaptureAV capture){
+        finished.put(id, sessionJson(id, capture));
+        sessions.remove(id);
+    }
+
+    private String findFinished(String id){
+        try {
+            return finished.get(Integer.valueOf(id));
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+    }
+
+    private static void sendFinished(HttpExchange exchange, String method, String action, String summary) throws IOException {
+        if(method.equals("GET") && (action.isEmpty() || action.equals("metrics"))){
+            send(exchange, 200, summary);
+        }else if(method.equals("POST") && action.equals("stop")){
+            send(exchange, 200, summary);
+        }else{
+            send(exchange, 409, error("Session finished"));
+        }
+    }
+
+    private CaptureAV findSession(String id){
+        try {
+            return sessions.get(Integer.valueOf(id));
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+    }
+
+    private void streamMetrics(HttpExchange exchange, int id, CaptureAV capture) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/x-ndjson");
+        // Chunked, until the session ends or the client disconnects
+        exchange.sendResponseHeaders(200, 0);
+        OutputStream out = exchange.getResponseBody();
+        try {
+            boolean running = true;
+            while(running){
+                running = !capture.awaitTermination(METRICS_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+                out.write((sessionJson(id, capture) + "\n").getBytes(StandardCharsets.UTF_8));
+                out.flush();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static Map<String, String> parseQuery(String query){
+        Map<String, String> values = new LinkedHashMap<>();
+        if(query == null || query.isEmpty()) return values;
+        for(String pair : query.split("&")){
+            int eq = pair.indexOf('=');
+            if(eq <= 0) throw new IllegalArgumentException("Invalid parameter: " + pair);
+            values.put(
+                    URLDecoder.decode(pair.substring(0, eq), StandardCharsets.UTF_8),
+                    URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8)
+            );
+        }
+        return values;
+    }
+
+    private String listJson(){
+        StringBuilder sb = new StringBuilder("[");
+        synchronized(finished){
+            for(String summary : finished.values()){
+                if(sb.length() > 1) sb.append(',');
+                sb.append(summary);
+            }
+        }
+        for(Map.Entry<Integer, CaptureAV> entry : sessions.entrySet()){
+            if(sb.length() > 1) sb.append(',');
+            sb.append(sessionJson(entry.getKey(), entry.getValue()));
+        }
+        return sb.append(']').toString();
+    }
+
+    private static String sessionJson(int id, CaptureAV capture){
+        CaptureStats s = capture.getStats();
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"id\":").append(id)
+                .append(",\"state\":\"").append(stateOf(capture)).append('"')
+                .append(",\"fps\":").append(String.format(Locale.ROOT, "%.2f", s.getEffectiveFps()))
+                .append(",\"framesCaptured\":").append(s.getFramesCaptured())
+                .append(",\"framesRecorded\":").append(s.getFramesRecorded())
+                .append(",\"framesDropped\":").append(s.getFramesDropped())
+                .append(",\"framesDuplicated\":").append(s.getFramesDuplicated())
+                .append(",\"audioChunks\":").append(s.getAudioChunks())
+                .append(",\"audioUnderruns\":").append(s.getAudioUnderruns())
+                .append(",\"latencyMicros\":{");
+        boolean first = true;
+        for(CaptureStats.Stage stage : s.getStages()){
+            LatencyHistogram h = s.getHistogram(stage);
+            if(!first) sb.append(',');
+            first = false;
+            sb.append('"').append(stage.name().toLowerCase()).append("\":{")
+                    .append("\"p50\":").append(h.getPercentile(50))
+                    .append(",\"p99\":").append(h.getPercentile(99))
+                    .append(",\"max\":").append(h.getMax())
+                    .append('}');
+        }
+        return sb.append("}}").toString();
+    }
+
+    private static String stateOf(CaptureAV capture){
+        // Done before the latch opens, see CaptureAV.finish
+        if(capture.isFinished() || capture.getFinalization().isDone()) return "finished";
+        Finalization.Stage stage = capture.getFinalization().getStage();
+        if(stage != null) return stage.name().toLowerCase();
+        if(!capture.isStarted()) return capture.isArmed() ? "armed" : "created";
+        return capture.isPaused() ? "paused" : "recording";
+    }
+
+    private static String error(String message){
+        return "{\"error\":\"" + message.replace("\\", "\\\\").replace("\"", "\\\"") + "\"}";
+    }
+
+    private static void send(HttpExchange exchange, int code, String json) throws IOException {
+        byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(code, body.length);
+        exchange.getResponseBody().write(body);
+    }
+}
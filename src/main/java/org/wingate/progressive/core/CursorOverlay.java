@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2023 util2
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.wingate.progressive.core;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.MouseInfo;
+import java.awt.Point;
+import java.awt.PointerInfo;
+import java.awt.Polygon;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+import org.bytedeco.javacv.Frame;
+
+/**
+ * Draws the mouse pointer, that Robot captures don't include. The pointer
+ * position is polled once per frame, and a cached sprite is blended into
+ * the native frame buffer over the few pixels it covers, the rest of the
+ * frame is not touched.
+ *
+ * @author util2
+ */
+public class CursorOverlay implements FrameOverlay {
+    
+    private final static int SPRITE_WIDTH = 14;
+    private final static int SPRITE_HEIGHT = 22;
+    
+    // Premultiplied sprite: one B, G, R, alpha quadruplet per pixel
+    private final int[] sprite;
+    // Opaque span of each row, to skip the transparent pixels
+    private final int[] rowStart;
+    private final int[] rowEnd;
+
+    public CursorOverlay() {
+        BufferedImage img = new BufferedImage(SPRITE_WIDTH, SPRITE_HEIGHT, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g2d = img.createGraphics();
+        g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        
+        // The usual arrow, the hot spot is the top left pixel
+        Polygon arrow = new Polygon(
+                new int[]{ 1, 1, 5, 8, 10, 7, 12 },
+                new int[]{ 1, 17, 13, 20, 19, 12, 12 },
+                7
+        );
+        g2d.setColor(Color.white);
+        g2d.fill(arrow);
+        g2d.setColor(Color.black);
+        g2d.setStroke(new BasicStroke(1.2f));
+        g2d.draw(arrow);
+        g2d.dispose();
+        
+        sprite = new int[SPRITE_WIDTH * SPRITE_HEIGHT * 4];
+        rowStart = new int[SPRITE_HEIGHT];
+        rowEnd = new int[SPRITE_HEIGHT];
+        for(int y=0; y<SPRITE_HEIGHT; y++){
+            rowStart[y] = SPRITE_WIDTH;
+            rowEnd[y] = 0;
+            for(int x=0; x<SPRITE_WIDTH; x++){
+                int argb = img.getRGB(x, y);
+                int a = argb >>> 24;
+                int i = (y * SPRITE_WIDTH + x) * 4;
+                sprite[i] = (argb & 0xFF) * a / 255;
+                sprite[i+1] = ((argb >> 8) & 0xFF) * a / 255;
+                sprite[i+2] = ((argb >> 16) & 0xFF) * a / 255;
+                sprite[i+3] = a;
+                if(a != 0){
+                    rowStart[y] = Math.min(rowStart[y], x);
+                    rowEnd[y] = x + 1;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void apply(Frame frame, Rectangle r) {
+        PointerInfo pointer = MouseInfo.getPointerInfo();
+        if(pointer == null) return;
+        Point p = pointer.getLocation();
+        
+        // Position of the sprite in the frame, the frame is in device pixels
+        // on a scaled desktop
+        double scale = frame.imageWidth / (double) r.width;
+        int left = (int) Math.round((p.x - r.x) * scale);
+        int top = (int) Math.round((p.y - r.y) * scale);
+        if(left >= frame.imageWidth || top >= frame.imageHeight
+                || left + SPRITE_WIDTH <= 0 || top + SPRITE_HEIGHT <= 0){
+            return;
+        }
+        
+        ByteBuffer buffer = (ByteBuffer)frame.image[0];
+        int stride = frame.imageStride;
+        
+        for(int y=Math.max(0, -top); y<SPRITE_HEIGHT && top + y < frame.imageHeight; y++){
+            int from = Math.max(rowStart[y], -left);
+            int to = Math.min(rowEnd[y], frame.imageWidth - left);
+            int line = (top + y) * stride;
+            for(int x=from; x<to; x++){
+                int i = (y * SPRITE_WIDTH + x) * 4;
+                int a = sprite[i+3];
+                if(a == 0) continue;
+                int pos = line + (left + x) * 3;
+                int inv = 255 - a;
+                for(int c=0; c<3; c++){
+                    int dst = buffer.get(pos + c) & 0xFF;
+                    buffer.put(pos + c, (byte)(sprite[i+c] + (dst * inv + 127) / 255));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2023 util2
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.wingate.progressive.core;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * The end of a recording, as returned by {@link CaptureAV#stopRecording()}.
+ * It completes with the written file (null in replay mode) once the trailer
+ * is on disk and every native resource is released, and reports the stage
+ * it is at meanwhile.
+ *
+ * @author util2
+ */
+public class Finalization extends CompletableFuture<File> {
+
+    public enum Stage {
+        /** The capture loop ends its frame, the audio line is emptied */
+        DRAINING,
+        /** The encoders give back the frames they still hold */
+        FLUSHING,
+        /** The muxer writes the trailer and closes the file */
+        FINALIZING,
+        /** Line, executors and converter are closed */
+        RELEASING,
+        /** The file is complete */
+        DONE;
+    }
+
+    private volatile Stage stage = null;
+    private final List<Consumer<Stage>> listeners = new CopyOnWriteArrayList<>();
+
+    public Finalization() {
+    }
+
+    /**
+     * @return the current stage, null while still recording
+     */
+    public Stage getStage() {
+        return stage;
+    }
+
+    /**
+     * @param listener called on the finalizing thread at each stage
+     */
+    public void onStage(Consumer<Stage> listener){
+        listeners.add(listener);
+    }
+
+    void advance(Stage stage){
+        this.stage = stage;
+        for(Consumer<Stage> listener : listeners){
+            listener.accept(stage);
+        }
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright (C) 2023 util2
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.wingate.progressive.core;
+
+import java.awt.Rectangle;
+import org.bytedeco.javacv.Frame;
+
+/**
+ * A compositing stage run on each captured frame, right before it is sent to
+ * the encoder. The frame is 8 bits BGR, in a native buffer: implementations
+ * write into it directly and only where they draw.
+ *
+ * @author util2
+ */
+public interface FrameOverlay {
+    
+    /**
+     * @param frame the BGR frame about to be encoded
+     * @param r the area of screen the frame comes from
+     */
+    void apply(Frame frame, Rectangle r);
+}
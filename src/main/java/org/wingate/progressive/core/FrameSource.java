@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2023 util2
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.wingate.progressive.core;
+
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+
+/**
+ * Where the frames of a {@link CaptureAV} come from: the screen through a
+ * {@link ScreenSource} by default, or a synthetic source to run without a display.
+ *
+ * @author util2
+ */
+@FunctionalInterface
+public interface FrameSource {
+
+    /**
+     * Called by the capture thread for each frame, as fast as it can.
+     * @param region the area to capture
+     * @return the image of the area, read before the next call
+     */
+    BufferedImage capture(Rectangle region);
+
+    /**
+     * @param region the area to capture
+     * @return the size of the images {@link #capture(Rectangle)} returns,
+     * the size of the area unless the source has pixels of its own
+     */
+    default Dimension getSize(Rectangle region){
+        return region.getSize();
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2023 util2
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.wingate.progressive.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histogram in the manner of HdrHistogram: values are counted in
+ * microseconds, linearly up to 32 then in 16 sub-buckets per power of two,
+ * which keeps a relative error under 7% from 1 us to hours with a fixed
+ * array of counters. Recording is lock-free and allocation-free, reading
+ * can be done from any thread while recording goes on.
+ *
+ * @author util2
+ */
+public class LatencyHistogram {
+
+    private final static int LINEAR = 32;
+    private final static int SUB_BUCKETS = 16;
+    private final static int SUB_BITS = 4;
+    private final static int OCTAVES = 40;
+
+    private final AtomicLongArray counts = new AtomicLongArray(LINEAR + OCTAVES * SUB_BUCKETS);
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public LatencyHistogram() {
+    }
+
+    /**
+     * @param nanos a duration, in nanoseconds
+     */
+    public void record(long nanos){
+        long micros = Math.max(0, nanos / 1000L);
+        counts.incrementAndGet(indexOf(micros));
+        total.incrementAndGet();
+        sum.addAndGet(micros);
+        long m;
+        while(micros > (m = max.get()) && !max.compareAndSet(m, micros)){
+            // Another thread raised the max, try again
+        }
+    }
+
+    private static int indexOf(long micros){
+        if(micros < LINEAR) return (int)micros;
+        int e = 63 - Long.numberOfLeadingZeros(micros) - SUB_BITS;
+        int sub = (int)(micros >>> e);
+        int index = LINEAR + (e - 1) * SUB_BUCKETS + (sub - SUB_BUCKETS);
+        return Math.min(index, LINEAR + OCTAVES * SUB_BUCKETS - 1);
+    }
+
+    private static long highestOf(int index){
+        if(index < LINEAR) return index;
+        int e = (index - LINEAR) / SUB_BUCKETS + 1;
+        long sub = (index - LINEAR) % SUB_BUCKETS + SUB_BUCKETS;
+        return ((sub + 1) << e) - 1;
+    }
+
+    public long getCount(){
+        return total.get();
+    }
+
+    /**
+     * @return the largest value recorded, in microseconds
+     */
+    public long getMax(){
+        return max.get();
+    }
+
+    /**
+     * @return the mean of the recorded values, in microseconds
+     */
+    public double getMean(){
+        long n = total.get();
+        return n == 0 ? 0 : (double)sum.get() / n;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the value under which this percentile of the recorded values
+     * falls, in microseconds
+     */
+    public long getPercentile(double percentile){
+        long n = total.get();
+        if(n == 0) return 0;
+        long rank = Math.max(1, (long)Math.ceil(percentile / 100d * n));
+        long seen = 0;
+        for(int i=0; i<counts.length(); i++){
+            seen += counts.get(i);
+            if(seen >= rank){
+                return Math.min(highestOf(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    public void reset(){
+        for(int i=0; i<counts.length(); i++){
+            counts.set(i, 0);
+        }
+        total.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2023 util2
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.wingate.progressive.core;
+
+import java.awt.Rectangle;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.Mixer;
+
+/**
+ * Records several regions or monitors in the same session. Each region gets
+ * its own capture thread and its own output file, named after the base file
+ * with a suffix (video-1.mp4, video-2.mp4...). The audio goes with the first
+ * region only, and the cores are split between the video encoders instead
+ * of letting each of them start one thread per core.
+ *
+ * @author util2
+ */
+public class MultiCapture {
+
+    private final List<CaptureAV> captures = new ArrayList<>();
+
+    /**
+     * @param media the base file, its name is suffixed for each region
+     * @param regions the areas of screen to record, on any monitor
+     * @param mixerInfo the audio device, recorded with the first region
+     */
+    public MultiCapture(File media, List<Rectangle> regions, Mixer.Info mixerInfo) {
+        String name = media.getName();
+        int dot = name.lastIndexOf(".");
+        String base = name.substring(0, dot);
+        String ext = name.substring(dot);
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        int threads = Math.max(1, cores / Math.max(1, regions.size()));
+
+        for(int i=0; i<regions.size(); i++){
+            File file = new File(media.getParentFile(), base + "-" + (i+1) + ext);
+            CaptureAV capture = new CaptureAV(file, regions.get(i), i == 0 ? mixerInfo : null);
+            capture.setEncoderThreads(threads);
+            captures.add(capture);
+        }
+    }
+
+    /**
+     * @param format the format of the audio device, see {@link AudioDevices}
+     */
+    public void setAudioFormat(AudioFormat format){
+        captures.get(0).setAudioFormat(format);
+    }
+
+    /**
+     * @param audioCodec the audio encoder of the first region
+     */
+    public void setAudioCodec(AudioCodec audioCodec){
+        captures.get(0).setAudioCodec(audioCodec);
+    }
+
+    /**
+     * @param audioMixer the audio sources, recorded with the first region
+     */
+    public void setAudioMixer(AudioMixer audioMixer){
+        captures.get(0).setAudioMixer(audioMixer);
+    }
+
+    /**
+     * @return false if one of the captures can't be prepared
+     */
+    public boolean arm(){
+        boolean ok = true;
+        for(CaptureAV capture : captures){
+            ok &= capture.arm();
+        }
+        return ok;
+    }
+
+    /**
+     * @return true once every capture is prepared
+     */
+    public boolean isArmed(){
+        for(CaptureAV capture : captures){
+            if(!capture.isArmed()) return false;
+        }
+        return true;
+    }
+
+    public void startRecording(){
+        for(CaptureAV capture : captures){
+            capture.startRecording();
+        }
+    }
+
+    public void pause(){
+        for(CaptureAV capture : captures){
+            capture.pause();
+        }
+    }
+
+    public void resume(){
+        for(CaptureAV capture : captures){
+            capture.resume();
+        }
+    }
+
+    /**
+     * @return completed once every file is written
+     */
+    public CompletableFuture<Void> stopRecording(){
+        CompletableFuture<?>[] ends = new CompletableFuture<?>[captures.size()];
+        for(int i=0; i<ends.length; i++){
+            ends[i] = captures.get(i).stopRecording();
+        }
+        return CompletableFuture.allOf(ends);
+    }
+
+    public List<CaptureAV> getCaptures() {
+        return Collections.unmodifiableList(captures);
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2023 util2
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.wingate.progressive.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.bytedeco.ffmpeg.global.avcodec;
+import org.bytedeco.ffmpeg.global.avformat;
+import org.bytedeco.ffmpeg.global.avutil;
+import org.bytedeco.ffmpeg.global.swresample;
+import org.bytedeco.ffmpeg.global.swscale;
+import org.bytedeco.javacpp.Loader;
+
+/**
+ * Loads the native FFmpeg libraries ahead of time. JavaCPP extracts them
+ * from the jars and links them on first use, which takes long enough to
+ * lose the first second of a recording when it happens on start.
+ *
+ * The lean build (mvn -P lean) defers it to the first armed recording
+ * instead, for a faster and lighter startup. The -Dprogressive.natives=eager
+ * or lazy system property overrides the build setting.
+ *
+ * @author util2
+ */
+public class Natives {
+
+    private static volatile Thread loading = null;
+    private static final boolean LAZY = "lazy".equals(readLoading());
+
+    private Natives() {
+    }
+
+    private static String readLoading(){
+        String loading = System.getProperty("progressive.natives");
+        if(loading != null) return loading;
+        Properties p = new Properties();
+        try (InputStream in = Natives.class.getResourceAsStream("natives.properties")) {
+            if(in != null) p.load(in);
+        } catch (IOException ex) {
+            Logger.getLogger(Natives.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        return p.getProperty("loading", "eager");
+    }
+
+    /**
+     * @return true if the libraries wait for the first armed recording
+     */
+    public static boolean isLazy(){
+        return LAZY;
+    }
+
+    /**
+     * Starts loading the libraries in the background at startup, returns at
+     * once. Does nothing in lazy mode.
+     */
+    public static void preload(){
+        if(!LAZY) start();
+    }
+
+    /**
+     * Loads the libraries now, or waits for the background loading.
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public static void load() throws InterruptedException {
+        start().join();
+    }
+
+    private static synchronized Thread start(){
+        if(loading != null) return loading;
+        loading = new Thread(() -> {
+            // Only what the recorder needs: libavdevice (cameras) and its
+            // X11 dependencies are left to the webcam overlay
+            try {
+                Loader.load(avutil.class);
+                Loader.load(swresample.class);
+                Loader.load(avcodec.class);
+                Loader.load(avformat.class);
+                Loader.load(swscale.class);
+            } catch (UnsatisfiedLinkError ex) {
+                Logger.getLogger(Natives.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }, "Natives");
+        loading.setDaemon(true);
+        loading.start();
+        return loading;
+    }
+}
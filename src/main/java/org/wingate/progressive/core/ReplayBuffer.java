@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2023 util2
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.wingate.progressive.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.bytedeco.ffmpeg.avcodec.AVPacket;
+import org.bytedeco.ffmpeg.avformat.AVFormatContext;
+import org.bytedeco.ffmpeg.global.avcodec;
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+import org.bytedeco.javacv.FFmpegFrameRecorder;
+
+/**
+ * In-memory ring of encoded MPEG-TS data covering the last seconds of a
+ * recording. The recorder writes into it like into a file, and each call to
+ * {@link #markKeyframe()} opens a new segment so that the oldest GOP can be
+ * dropped as a whole once the ring is full. Nothing touches the disk until
+ * {@link #save(File)} remuxes the ring into a MP4 or MKV file, without
+ * re-encoding.
+ *
+ * @author util2
+ */
+public class ReplayBuffer extends OutputStream {
+
+    // Segments never grow past this size, whatever the bitrate is
+    private final static int MAX_SEGMENT_BYTES = 64 * 1024 * 1024;
+    private final static int INITIAL_SEGMENT_BYTES = 256 * 1024;
+
+    private final int maxSegments;
+    private final long maxBytes;
+    // Pooled arrays larger than this are given back to the GC
+    private final int maxPooledBytes;
+
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+    private final ArrayDeque<Segment> pool = new ArrayDeque<>();
+    private Segment current = null;
+    private long totalBytes = 0;
+
+    /**
+     * @param seconds duration to keep
+     * @param gopSeconds duration of a GOP, the ring is cut on those
+     * @param maxBytes upper memory bound, whatever the duration is
+     */
+    public ReplayBuffer(int seconds, double gopSeconds, long maxBytes) {
+        // One more segment than needed, as the first one is always partial
+        this.maxSegments = (int)Math.ceil(seconds / gopSeconds) + 1;
+        this.maxBytes = maxBytes;
+        this.maxPooledBytes = (int)Math.min(MAX_SEGMENT_BYTES,
+                Math.max(INITIAL_SEGMENT_BYTES, 2 * maxBytes / maxSegments));
+    }
+
+    /**
+     * Starts a new segment, called right before a keyframe is encoded.
+     */
+    public synchronized void markKeyframe(){
+        if(current != null && current.length == 0) return;
+        openSegment();
+    }
+
+    private void openSegment(){
+        current = pool.isEmpty() ? new Segment() : pool.poll();
+        current.length = 0;
+        segments.add(current);
+        trim();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{ (byte)b }, 0, 1);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        if(current == null) markKeyframe();
+        while(len > 0){
+            if(current.length == MAX_SEGMENT_BYTES){
+                // The GOP goes on in the next segment, the stream stays
+                // whole, only the ring may cut it in the middle
+                Logger.getLogger(ReplayBuffer.class.getName()).log(Level.WARNING,
+                        "GOP larger than {0} MB, split in the replay ring", MAX_SEGMENT_BYTES >> 20);
+                openSegment();
+            }
+            int n = current.append(b, off, len);
+            totalBytes += n;
+            off += n;
+            len -= n;
+        }
+        trim();
+    }
+
+    private void trim(){
+        while(segments.size() > 1
+                && (segments.size() > maxSegments || totalBytes > maxBytes)){
+            Segment old = segments.poll();
+            totalBytes -= old.length;
+            recycle(old);
+        }
+    }
+
+    private void recycle(Segment segment){
+        // maxBytes bounds the lengths, not the arrays: a segment grown by
+        // a large GOP doesn't stay that large in the pool
+        if(segment.data.length > maxPooledBytes){
+            segment.data = new byte[INITIAL_SEGMENT_BYTES];
+        }
+        segment.length = 0;
+        pool.add(segment);
+    }
+
+    /**
+     * @return a copy of the buffered stream, oldest GOP first
+     */
+    public synchronized byte[] snapshot(){
+        byte[] data = new byte[(int)Math.min(totalBytes, Integer.MAX_VALUE - 8)];
+        int pos = 0;
+        for(Segment s : segments){
+            int n = Math.min(s.length, data.length - pos);
+            System.arraycopy(s.data, 0, data, pos, n);
+            pos += n;
+        }
+        return data;
+    }
+
+    public synchronized long getBufferedBytes(){
+        return totalBytes;
+    }
+
+    public synchronized void clear(){
+        for(Segment s : segments){
+            recycle(s);
+        }
+        segments.clear();
+        current = null;
+        totalBytes = 0;
+    }
+
+    /**
+     * Writes the buffered seconds to a file, the container is chosen from
+     * the file extension. Packets are copied as is, starting at the first
+     * video keyframe.
+     * @param output the MP4 or MKV file to create
+     * @throws IOException if the ring can't be read back or the file written
+     */
+    public void save(File output) throws IOException {
+        byte[] data = snapshot();
+        if(data.length == 0) throw new IOException("Replay buffer is empty");
+
+        try(FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(new ByteArrayInputStream(data))){
+            grabber.setFormat("mpegts");
+            grabber.start();
+
+            // MPEG-TS codec tags are not valid in MP4/MKV, let the muxer choose
+            AVFormatContext ifmt = grabber.getFormatContext();
+            for(int i=0; i<ifmt.nb_streams(); i++){
+                ifmt.streams(i).codecpar().codec_tag(0);
+            }
+
+            try(FFmpegFrameRecorder remuxer = new FFmpegFrameRecorder(
+                    output,
+                    grabber.getImageWidth(),
+                    grabber.getImageHeight(),
+                    grabber.getAudioChannels())){
+                String name = output.getName().toLowerCase();
+                remuxer.setFormat(name.substring(name.lastIndexOf(".")+1));
+                // The replay starts at zero, not at the ring position
+                remuxer.setOption("avoid_negative_ts", "make_zero");
+                remuxer.start(ifmt);
+
+                boolean keyframeSeen = false;
+                AVPacket packet;
+                while((packet = grabber.grabPacket()) != null){
+                    // The first segment may begin with the tail of a GOP
+                    if(!keyframeSeen){
+                        keyframeSeen = packet.stream_index() == grabber.getVideoStream()
+                                && (packet.flags() & avcodec.AV_PKT_FLAG_KEY) != 0;
+                    }
+                    if(keyframeSeen){
+                        remuxer.recordPacket(packet);
+                    }else{
+                        avcodec.av_packet_unref(packet);
+                    }
+                }
+                remuxer.stop();
+            }
+            grabber.stop();
+        }
+    }
+
+    private static class Segment {
+        private byte[] data = new byte[INITIAL_SEGMENT_BYTES];
+        private int length = 0;
+
+        private int append(byte[] b, int off, int len){
+            int n = Math.min(len, MAX_SEGMENT_BYTES - length);
+            if(length + n > data.length){
+                data = Arrays.copyOf(data, Math.min(MAX_SEGMENT_BYTES, Math.max(data.length * 2, length + n)));
+            }
+            System.arraycopy(b, off, data, length, n);
+            length += n;
+            return n;
+        }
+    }
+}
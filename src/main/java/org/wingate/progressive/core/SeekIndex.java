@@ -0,0 +1,289 @@
+/*
+ * Copyright (C) 2023 util2
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.wingate.progressive.core;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.imageio.ImageIO;
+import org.bytedeco.javacv.Frame;
+import org.bytedeco.javacv.Java2DFrameConverter;
+import org.bytedeco.ffmpeg.avformat.AVFormatContext;
+import org.bytedeco.ffmpeg.avformat.AVIndexEntry;
+import org.bytedeco.ffmpeg.avformat.AVStream;
+import org.bytedeco.ffmpeg.avutil.AVRational;
+import org.bytedeco.ffmpeg.global.avformat;
+import org.bytedeco.ffmpeg.global.avutil;
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+
+/**
+ * Sidecar index written next to the media while it is recorded
+ * (video.mkv.idx), for review tools to seek and show a filmstrip without
+ * decoding the media. Big endian:
+ * <pre>
+ * header    int magic "PIDX", int version
+ * thumbnail byte 'T', long pts (microseconds), int width, int height,
+ *           int length, JPEG
+ * keyframe  byte 'K', long pts, long offset
+ * </pre>
+ * Thumbnails are scaled every few seconds from the frame that was just
+ * encoded, and compressed and written on a background thread. The
+ * keyframes are appended once the trailer is written: the encoder adds
+ * keyframes on scene changes that FFmpegFrameRecorder doesn't report, so
+ * they come from the index the muxer wrote (MP4 sample table, MKV cues),
+ * read without decoding anything.
+ *
+ * @author util2
+ */
+public class SeekIndex implements AutoCloseable {
+
+    public final static String EXTENSION = ".idx";
+    private final static int MAGIC = 0x50494458;
+    private final static int VERSION = 1;
+    private final static long THUMBNAIL_MICROS = 10_000_000L;
+    private final static int THUMBNAIL_WIDTH = 160;
+    private final static byte KEYFRAME = 'K';
+    private final static byte THUMBNAIL = 'T';
+
+    public static class Entry {
+
+        private final long pts;
+        private final long offset;
+        private final BufferedImage thumbnail;
+
+        private Entry(long pts, long offset, BufferedImage thumbnail) {
+            this.pts = pts;
+            this.offset = offset;
+            this.thumbnail = thumbnail;
+        }
+
+        /**
+         * @return the presentation time in microseconds
+         */
+        public long getPts() {
+            return pts;
+        }
+
+        /**
+         * @return the byte to seek to, -1 for a thumbnail
+         */
+        public long getOffset() {
+            return offset;
+        }
+
+        /**
+         * @return the picture, null for a keyframe
+         */
+        public BufferedImage getThumbnail() {
+            return thumbnail;
+        }
+    }
+
+    private final File media;
+    private final DataOutputStream out;
+    private final ExecutorService writer = Executors.newSingleThreadExecutor((r) -> {
+        Thread t = new Thread(r, "SeekIndex");
+        t.setDaemon(true);
+        return t;
+    });
+    // Capture thread only, used once per thumbnail
+    private final Java2DFrameConverter converter = new Java2DFrameConverter();
+    private long nextThumbnail = 0;
+    private volatile boolean failed = false;
+
+    /**
+     * @param media the file being recorded
+     * @throws IOException if the sidecar can't be created
+     */
+    public SeekIndex(File media) throws IOException {
+        this.media = media;
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(sidecarOf(media))));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+    }
+
+    /**
+     * @param media a recorded file
+     * @return its index
+     */
+    public static File sidecarOf(File media){
+        return new File(media.getPath() + EXTENSION);
+    }
+
+    /**
+     * Called by the capture thread for each frame encoded, keeps one every
+     * few seconds.
+     * @param pts the time of the frame in microseconds
+     * @param encoded the frame as encoded, overlays drawn, only read during
+     * this call
+     */
+    public void frame(long pts, Frame encoded){
+        if(failed || pts < nextThumbnail) return;
+        nextThumbnail = pts + THUMBNAIL_MICROS;
+        BufferedImage frame = converter.convert(encoded);
+        // Scaled now, the frame is reused by the next capture
+        int height = Math.max(1, frame.getHeight() * THUMBNAIL_WIDTH / frame.getWidth());
+        BufferedImage small = new BufferedImage(THUMBNAIL_WIDTH, height, BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D g = small.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.drawImage(frame, 0, 0, THUMBNAIL_WIDTH, height, null);
+        g.dispose();
+        writer.execute(() -> write(() -> {
+            ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+            ImageIO.write(small, "jpg", jpeg);
+            out.writeByte(THUMBNAIL);
+            out.writeLong(pts);
+            out.writeInt(small.getWidth());
+            out.writeInt(small.getHeight());
+            out.writeInt(jpeg.size());
+            jpeg.writeTo(out);
+        }));
+    }
+
+    private interface Write {
+        void run() throws IOException;
+    }
+
+    private void write(Write w){
+        if(failed) return;
+        try {
+            w.run();
+        } catch (IOException ex) {
+            // The recording goes on without its index
+            Logger.getLogger(SeekIndex.class.getName()).log(Level.SEVERE, null, ex);
+            failed = true;
+        }
+    }
+
+    /**
+     * Writes the pending thumbnails, the keyframes of the finished media and
+     * closes the sidecar. To be called once the trailer is written.
+     */
+    @Override
+    public void close(){
+        writer.shutdown();
+        try {
+            writer.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        write(this::writeKeyframes);
+        converter.close();
+        try {
+            out.close();
+        } catch (IOException ex) {
+            Logger.getLogger(SeekIndex.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    private void writeKeyframes() throws IOException {
+        if(!media.isFile() || media.length() == 0) return;
+        for(Entry entry : keyframes(media)){
+            out.writeByte(KEYFRAME);
+            out.writeLong(entry.pts);
+            out.writeLong(entry.offset);
+        }
+    }
+
+    /**
+     * @param media a finished media
+     * @return the keyframes of its video from the container index, empty
+     * without video
+     * @throws IOException if it can't be opened
+     */
+    public static List<Entry> keyframes(File media) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        try (FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(media)) {
+            grabber.start();
+            AVFormatContext oc = grabber.getFormatContext();
+            AVStream video = null;
+            for(int i=0; i<oc.nb_streams(); i++){
+                if(oc.streams(i).codecpar().codec_type() == avutil.AVMEDIA_TYPE_VIDEO){
+                    video = oc.streams(i);
+                    break;
+                }
+            }
+            if(video == null) return entries;
+            // Matroska only reads its cues on the first seek
+            avformat.av_seek_frame(oc, -1, 0, avformat.AVSEEK_FLAG_BACKWARD);
+
+            AVRational tb = video.time_base();
+            long start = video.start_time() == avutil.AV_NOPTS_VALUE ? 0 : video.start_time();
+            int count = avformat.avformat_index_get_entries_count(video);
+            for(int i=0; i<count; i++){
+                AVIndexEntry entry = avformat.avformat_index_get_entry(video, i);
+                if((entry.flags() & AVIndexEntry.AVINDEX_KEYFRAME) == 0) continue;
+                entries.add(new Entry((entry.timestamp() - start) * 1_000_000L * tb.num() / tb.den(), entry.pos(), null));
+            }
+            grabber.stop();
+        }
+        return entries;
+    }
+
+    /**
+     * @param index a sidecar file
+     * @return its keyframes and thumbnails, in order
+     * @throws IOException if it can't be read or isn't an index
+     */
+    public static List<Entry> read(File index) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(index)))) {
+            if(in.readInt() != MAGIC || in.readInt() != VERSION){
+                throw new IOException("Not a seek index: " + index);
+            }
+            while(true){
+                int kind;
+                try {
+                    kind = in.readByte();
+                } catch (EOFException ex) {
+                    break;
+                }
+                long pts = in.readLong();
+                if(kind == KEYFRAME){
+                    entries.add(new Entry(pts, in.readLong(), null));
+                }else if(kind == THUMBNAIL){
+                    in.readInt();
+                    in.readInt();
+                    byte[] jpeg = new byte[in.readInt()];
+                    in.readFully(jpeg);
+                    entries.add(new Entry(pts, -1, ImageIO.read(new ByteArrayInputStream(jpeg))));
+                }else{
+                    throw new IOException("Corrupt seek index: " + index);
+                }
+            }
+        }
+        return entries;
+    }
+}
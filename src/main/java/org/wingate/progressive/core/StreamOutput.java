@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2023 util2
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.wingate.progressive.core;
+
+import java.io.File;
+
+/**
+ * A network sink recorded alongside the local file. Both outputs are fed by
+ * the FFmpeg tee muxer, so the video is encoded only once. The network side
+ * runs behind a fifo muxer with its own thread and a bounded packet queue:
+ * when the network can't keep up, packets are dropped there and the file
+ * recording never waits.
+ *
+ * @author util2
+ */
+public class StreamOutput {
+
+    private final String url;
+    private int queueSize = 250;
+    private int recoveryWaitSeconds = 2;
+
+    /**
+     * @param url rtmp://, rtmps://, srt://, udp:// or tcp:// address
+     */
+    public StreamOutput(String url) {
+        this.url = url;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+    /**
+     * @param queueSize packets kept for the network before dropping
+     */
+    public void setQueueSize(int queueSize) {
+        this.queueSize = queueSize;
+    }
+
+    public int getRecoveryWaitSeconds() {
+        return recoveryWaitSeconds;
+    }
+
+    public void setRecoveryWaitSeconds(int recoveryWaitSeconds) {
+        this.recoveryWaitSeconds = recoveryWaitSeconds;
+    }
+
+    /**
+     * @return the muxer expected by the protocol of the url
+     */
+    public String getFormat(){
+        String lower = url.toLowerCase();
+        if(lower.startsWith("rtmp://") || lower.startsWith("rtmps://")){
+            return "flv";
+        }
+        // SRT, UDP, TCP...: MPEG-TS
+        return "mpegts";
+    }
+
+    /**
+     * Builds the tee muxer output for a file and this stream.
+     * @param media the local file, its extension gives the container
+     * @return the filename to give to the tee muxer
+     */
+    public String toTeeSpec(File media){
+        String ext = media.getName().toLowerCase().substring(media.getName().lastIndexOf(".")+1);
+        String fileFormat = ext.equals("mkv") ? "matroska" : ext;
+
+        // The file is the reference: if it fails, the recording fails
+        String fileSlave = "[f=" + fileFormat + ":onfail=abort]" + escape(media.getPath());
+
+        // The fifo options are nested in the slave options, so their
+        // separators have to survive two levels of unescaping
+        String fifo = "queue_size=" + queueSize
+                + "\\\\:drop_pkts_on_overflow=1"
+                + "\\\\:attempt_recovery=1"
+                + "\\\\:recover_any_error=1"
+                + "\\\\:recovery_wait_time=" + recoveryWaitSeconds
+                + "\\\\:restart_with_keyframe=1";
+
+        StringBuilder sb = new StringBuilder("[f=").append(getFormat());
+        sb.append(":onfail=ignore:use_fifo=1:fifo_options=").append(fifo);
+        if(getFormat().equals("mpegts")){
+            // Receivers joining late need SPS/PPS on every keyframe
+            sb.append(":bsfs/v=dump_extra");
+        }
+        sb.append("]").append(escape(url));
+
+        return fileSlave + "|" + sb.toString();
+    }
+
+    private static String escape(String s){
+        StringBuilder sb = new StringBuilder();
+        for(char c : s.toCharArray()){
+            if(c == '\\' || c == '|' || c == '[' || c == ']'){
+                sb.append('\\');
+            }
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2023 util2
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.wingate.progressive.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import org.bytedeco.ffmpeg.global.avcodec;
+import org.bytedeco.ffmpeg.global.avutil;
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+import org.bytedeco.javacv.FFmpegFrameRecorder;
+import org.bytedeco.javacv.Frame;
+
+/**
+ * One file to re-encode to archive settings, run by a
+ * {@link TranscodeQueue}. The output is written to a .part file renamed once
+ * complete, so a crash never leaves a truncated archive behind.
+ *
+ * @author util2
+ */
+public class TranscodeJob implements Comparable<TranscodeJob> {
+
+    public enum State {
+        QUEUED, RUNNING, DONE, CANCELLED, FAILED;
+    }
+
+    // Archive settings: smaller files, encoding time doesn't matter
+    public final static String PRESET = "slow";
+    public final static int CRF = 28;
+    public final static int VIDEO_BITRATE = 1000000;
+
+    // Same priority: first queued, first run
+    private final static AtomicLong SEQUENCE = new AtomicLong();
+
+    private final File input;
+    private final File output;
+    private final long sequence = SEQUENCE.getAndIncrement();
+    private volatile int priority;
+    private volatile State state = State.QUEUED;
+    private volatile double progress = 0;
+    private volatile boolean cancelled = false;
+    private volatile Exception error = null;
+    private AudioCodec audioCodec = AudioCodec.OPUS;
+    private boolean chunked = false;
+
+    /**
+     * @param input the recording to re-encode
+     * @param output the archive to write, its extension is the container
+     * @param priority higher runs first
+     */
+    public TranscodeJob(File input, File output, int priority) {
+        this.input = input;
+        this.output = output;
+        this.priority = priority;
+    }
+
+    public File getInput() {
+        return input;
+    }
+
+    public File getOutput() {
+        return output;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * Only while queued, see {@link TranscodeQueue#setPriority}.
+     */
+    void setPriority(int priority) {
+        this.priority = priority;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    void setState(State state) {
+        this.state = state;
+    }
+
+    /**
+     * @return from 0 to 1
+     */
+    public double getProgress() {
+        return progress;
+    }
+
+    /**
+     * @return why it failed, null otherwise
+     */
+    public Exception getError() {
+        return error;
+    }
+
+    public AudioCodec getAudioCodec() {
+        return audioCodec;
+    }
+
+    /**
+     * @param audioCodec the audio encoder of the archive, Opus by default
+     */
+    public void setAudioCodec(AudioCodec audioCodec) {
+        this.audioCodec = audioCodec;
+    }
+
+    public boolean isChunked() {
+        return chunked;
+    }
+
+    /**
+     * @param chunked true to encode a long file in parallel pieces, see
+     * {@link ChunkedTranscode}
+     */
+    public void setChunked(boolean chunked) {
+        this.chunked = chunked;
+    }
+
+    void setProgress(double progress) {
+        this.progress = progress;
+    }
+
+    /**
+     * Stops the job, queued or running. The .part file is removed.
+     */
+    public void cancel(){
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * @return the file written until the job is done
+     */
+    public File getPartFile(){
+        return new File(output.getPath() + ".part");
+    }
+
+    @Override
+    public int compareTo(TranscodeJob o) {
+        if(priority != o.priority) return Integer.compare(o.priority, priority);
+        return Long.compare(sequence, o.sequence);
+    }
+
+    /**
+     * Decodes and encodes the whole file, on the calling thread.
+     * @param threads the encoder threads this job may use
+     * @return the state it ended in
+     */
+    State run(int threads){
+        File part = getPartFile();
+        try {
+            if(!chunked || !new ChunkedTranscode(this, threads).run()){
+                runSingle(threads);
+            }
+        } catch (IOException | RuntimeException ex) {
+            // A codec missing, a bad stream: failed, not cancelled
+            error = ex;
+            part.delete();
+            return State.FAILED;
+        }
+
+        if(cancelled){
+            part.delete();
+            return State.CANCELLED;
+        }
+        output.delete();
+        if(!part.renameTo(output)){
+            error = new IOException("Can't rename " + part + " to " + output);
+            return State.FAILED;
+        }
+        progress = 1;
+        return State.DONE;
+    }
+
+    /**
+     * @return the FFmpeg name of the output container
+     */
+    String getFormat(){
+        String name = output.getName();
+        String format = name.substring(name.lastIndexOf('.') + 1).toLowerCase();
+        return format.equals("mkv") ? "matroska" : format;
+    }
+
+    /**
+     * @param file the file to write
+     * @param grabber the started source, for its size, rate and audio
+     * @param video false for the audio alone
+     * @param audio false for the video alone
+     * @param threads the encoder threads
+     * @return the recorder with the archive settings, not started
+     */
+    FFmpegFrameRecorder createRecorder(File file, FFmpegFrameGrabber grabber, boolean video, boolean audio, int threads){
+        int channels = audio ? grabber.getAudioChannels() : 0;
+        FFmpegFrameRecorder recorder = video
+                ? new FFmpegFrameRecorder(file, grabber.getImageWidth(), grabber.getImageHeight(), channels)
+                : new FFmpegFrameRecorder(file, channels);
+        recorder.setFormat(getFormat());
+        if(video){
+            recorder.setVideoCodec(avcodec.AV_CODEC_ID_H264);
+            recorder.setVideoOption("preset", PRESET);
+            recorder.setVideoOption("crf", Integer.toString(CRF));
+            recorder.setVideoOption("threads", Integer.toString(threads));
+            recorder.setVideoBitrate(VIDEO_BITRATE);
+            recorder.setFrameRate(grabber.getFrameRate());
+            recorder.setGopSize((int) Math.round(grabber.getFrameRate() * 2));
+        }
+        if(channels > 0){
+            recorder.setAudioCodec(audioCodec.getCodecId());
+            if(audioCodec.getBitrate() > 0){
+                recorder.setAudioBitrate(audioCodec.getBitrate());
+            }
+            recorder.setSampleRate(audioCodec.getEncoderRate(grabber.getSampleRate()));
+            recorder.setAudioChannels(channels);
+        }
+        return recorder;
+    }
+
+    private void runSingle(int threads) throws IOException {
+        try (FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(input)) {
+            // Decoded straight to YUV, no RGB round trip before the encoder
+            grabber.setPixelFormat(avutil.AV_PIX_FMT_YUV420P);
+            grabber.start();
+
+            try (FFmpegFrameRecorder recorder = createRecorder(getPartFile(), grabber, true, true, threads)) {
+                recorder.start();
+
+                long length = Math.max(1, grabber.getLengthInTime());
+                Frame frame;
+                while(!cancelled && (frame = grabber.grab()) != null){
+                    if(frame.image != null){
+                        // The captures have gaps where frames were dropped,
+                        // the archive keeps the same timing
+                        if(frame.timestamp > recorder.getTimestamp()){
+                            recorder.setTimestamp(frame.timestamp);
+                        }
+                        progress = Math.min(1, frame.timestamp / (double) length);
+                    }
+                    recorder.record(frame, grabber.getPixelFormat());
+                }
+                recorder.stop();
+            }
+            grabber.stop();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return input.getName() + " -> " + output.getName();
+    }
+}
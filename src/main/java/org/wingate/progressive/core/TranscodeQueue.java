@@ -0,0 +1,325 @@
+/*
+ * Copyright (C) 2023 util2
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.wingate.progressive.core;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Re-encodes finished recordings to archive settings in the background.
+ * The jobs run on a work-stealing pool, highest priority first. At most
+ * {@link #getMaxJobs()} run at once and each encoder gets its share of the
+ * cores, so together they never use more threads than there are cores. A
+ * chunked job dispatched with nothing else waiting takes the idle slots
+ * too, and their cores go to its pieces; the next jobs wait for them.
+ *
+ * Every change is appended to a journal: after a crash, {@link #resume()}
+ * queues again the jobs that weren't done, their partial output is
+ * started over.
+ * <pre>
+ * queued	priority	input	output
+ * done|cancelled|failed	output
+ * </pre>
+ *
+ * @author util2
+ */
+public class TranscodeQueue {
+
+    public final static String JOURNAL_NAME = "transcode.journal";
+
+    private final File journal;
+    private final int maxJobs;
+    private final int threadsPerJob;
+    private final ForkJoinPool pool;
+    private final PriorityBlockingQueue<TranscodeJob> pending = new PriorityBlockingQueue<>();
+    private final List<TranscodeJob> jobs = new CopyOnWriteArrayList<>();
+    private final List<Consumer<TranscodeJob>> listeners = new CopyOnWriteArrayList<>();
+    // Job slots in use, a chunked job may hold several
+    private int running = 0;
+    private volatile boolean shutdown = false;
+    private volatile boolean chunked = false;
+
+    /**
+     * @param journal the journal file, created if needed
+     * @param maxJobs the number of jobs run at once
+     */
+    public TranscodeQueue(File journal, int maxJobs) {
+        int cores = Runtime.getRuntime().availableProcessors();
+        this.journal = journal;
+        this.maxJobs = Math.max(1, Math.min(maxJobs, cores));
+        this.threadsPerJob = Math.max(1, cores / this.maxJobs);
+        this.pool = new ForkJoinPool(this.maxJobs);
+    }
+
+    /**
+     * @param journal the journal file, created if needed
+     */
+    public TranscodeQueue(File journal) {
+        // An encoder scales well up to about 4 threads, more jobs use the rest
+        this(journal, Math.max(1, Runtime.getRuntime().availableProcessors() / 4));
+    }
+
+    public int getMaxJobs() {
+        return maxJobs;
+    }
+
+    public int getThreadsPerJob() {
+        return threadsPerJob;
+    }
+
+    public boolean isChunked() {
+        return chunked;
+    }
+
+    /**
+     * @param chunked true to cut the long files of the jobs submitted from
+     * now on, and encode the pieces in parallel, see {@link ChunkedTranscode}
+     */
+    public void setChunked(boolean chunked) {
+        this.chunked = chunked;
+    }
+
+    /**
+     * @param listener called when a job changes state, on the thread that
+     * changed it
+     */
+    public void addChangeListener(Consumer<TranscodeJob> listener){
+        listeners.add(listener);
+    }
+
+    /**
+     * @return every job since this queue was created, in submission order
+     */
+    public List<TranscodeJob> getJobs() {
+        return Collections.unmodifiableList(jobs);
+    }
+
+    /**
+     * @param input the recording
+     * @param output the archive
+     * @param priority higher runs first
+     * @return the queued job
+     */
+    public TranscodeJob submit(File input, File output, int priority){
+        TranscodeJob job = new TranscodeJob(input, output, priority);
+        job.setChunked(chunked);
+        write("queued\t" + priority + "\t" + input.getAbsolutePath() + "\t" + output.getAbsolutePath());
+        enqueue(job);
+        return job;
+    }
+
+    private void enqueue(TranscodeJob job){
+        jobs.add(job);
+        pending.add(job);
+        fire(job);
+        dispatch();
+    }
+
+    /**
+     * Queues again what the journal holds that isn't done, then rewrites the
+     * journal with only these jobs.
+     * @return the jobs queued again
+     */
+    public List<TranscodeJob> resume(){
+        List<TranscodeJob> resumed = new ArrayList<>();
+        if(!journal.isFile()) return resumed;
+
+        // By output, the last line wins
+        Map<String, String[]> queued = new LinkedHashMap<>();
+        try {
+            for(String line : Files.readAllLines(journal.toPath(), StandardCharsets.UTF_8)){
+                String[] t = line.split("\t");
+                if(t.length == 4 && t[0].equals("queued")){
+                    queued.put(t[3], t);
+                }else if(t.length == 2){
+                    queued.remove(t[1]);
+                }
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(TranscodeQueue.class.getName()).log(Level.SEVERE, null, ex);
+            return resumed;
+        }
+
+        synchronized(this){
+            StringBuilder sb = new StringBuilder();
+            for(String[] t : queued.values()){
+                sb.append(String.join("\t", t)).append('\n');
+            }
+            try {
+                Files.writeString(journal.toPath(), sb, StandardCharsets.UTF_8);
+            } catch (IOException ex) {
+                Logger.getLogger(TranscodeQueue.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+
+        for(String[] t : queued.values()){
+            TranscodeJob job;
+            try {
+                job = new TranscodeJob(new File(t[2]), new File(t[3]), Integer.parseInt(t[1]));
+            } catch (NumberFormatException ex) {
+                continue;
+            }
+            job.setChunked(chunked);
+            // Left by the crash
+            job.getPartFile().delete();
+            resumed.add(job);
+            enqueue(job);
+        }
+        return resumed;
+    }
+
+    /**
+     * @param job a job of this queue
+     * @param priority the new priority, only taken into account while queued
+     */
+    public void setPriority(TranscodeJob job, int priority){
+        if(pending.remove(job)){
+            job.setPriority(priority);
+            write("queued\t" + priority + "\t" + job.getInput().getAbsolutePath() + "\t" + job.getOutput().getAbsolutePath());
+            pending.add(job);
+            fire(job);
+        }
+    }
+
+    /**
+     * @param job a job of this queue, queued or running
+     */
+    public void cancel(TranscodeJob job){
+        job.cancel();
+        if(pending.remove(job)){
+            finish(job, TranscodeJob.State.CANCELLED);
+        }
+    }
+
+    /**
+     * Cancels what is queued, lets the running jobs end.
+     */
+    public void cancelPending(){
+        TranscodeJob job;
+        while((job = pending.poll()) != null){
+            job.cancel();
+            finish(job, TranscodeJob.State.CANCELLED);
+        }
+    }
+
+    private synchronized void dispatch(){
+        TranscodeJob job;
+        while(running < maxJobs && (job = pending.poll()) != null){
+            // Alone: a chunked job uses the cores of the idle slots
+            int slots = job.isChunked() && pending.isEmpty() ? maxJobs - running : 1;
+            running += slots;
+            TranscodeJob j = job;
+            pool.execute(() -> run(j, slots));
+        }
+    }
+
+    private void run(TranscodeJob job, int slots){
+        TranscodeJob.State state = TranscodeJob.State.CANCELLED;
+        try {
+            // Handed to the pool just before a shutdown: left to resume()
+            if(!job.isCancelled() && !shutdown){
+                job.setState(TranscodeJob.State.RUNNING);
+                fire(job);
+                state = job.run(threadsPerJob * slots);
+            }
+        } finally {
+            finish(job, state);
+            synchronized(this){
+                running -= slots;
+                notifyAll();
+            }
+            dispatch();
+        }
+    }
+
+    private void finish(TranscodeJob job, TranscodeJob.State state){
+        job.setState(state);
+        // Stopped by the shutdown, not by the user: left to resume()
+        if(!shutdown || state != TranscodeJob.State.CANCELLED) write(state.name().toLowerCase() + "\t" + job.getOutput().getAbsolutePath());
+        if(state == TranscodeJob.State.FAILED){
+            Logger.getLogger(TranscodeQueue.class.getName()).log(Level.SEVERE, job.toString(), job.getError());
+        }
+        fire(job);
+    }
+
+    private void fire(TranscodeJob job){
+        for(Consumer<TranscodeJob> listener : listeners){
+            listener.accept(job);
+        }
+    }
+
+    private synchronized void write(String line){
+        try (BufferedWriter w = Files.newBufferedWriter(journal.toPath(), StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            w.write(line);
+            w.newLine();
+        } catch (IOException ex) {
+            Logger.getLogger(TranscodeQueue.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    /**
+     * @param timeout the maximum time to wait
+     * @param unit the unit of the timeout
+     * @return true once nothing is queued nor running
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public synchronized boolean awaitIdle(long timeout, TimeUnit unit) throws InterruptedException {
+        long end = System.nanoTime() + unit.toNanos(timeout);
+        while(running > 0 || !pending.isEmpty()){
+            long left = end - System.nanoTime();
+            if(left <= 0) return false;
+            TimeUnit.NANOSECONDS.timedWait(this, left);
+        }
+        return true;
+    }
+
+    /**
+     * Cancels everything. The journal keeps the jobs that were running, they
+     * are queued again by the next {@link #resume()}.
+     */
+    public void shutdown(){
+        shutdown = true;
+        pending.clear();
+        // Running, or dispatched and not marked running yet
+        for(TranscodeJob job : jobs){
+            TranscodeJob.State state = job.getState();
+            if(state != TranscodeJob.State.DONE
+                    && state != TranscodeJob.State.FAILED
+                    && state != TranscodeJob.State.CANCELLED){
+                job.cancel();
+            }
+        }
+        pool.shutdown();
+    }
+}
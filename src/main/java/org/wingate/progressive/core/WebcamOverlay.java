@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2023 util2
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.wingate.progressive.core;
+
+import java.awt.Rectangle;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.bytedeco.ffmpeg.global.avdevice;
+import org.bytedeco.ffmpeg.global.avutil;
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+import org.bytedeco.javacv.Frame;
+import org.bytedeco.javacv.FrameGrabber;
+
+/**
+ * Picture-in-picture of a webcam in a corner of the screen capture. The
+ * camera is grabbed on its own thread and scaled by FFmpeg to the overlay
+ * size, straight in BGR, so the capture thread only copies a small cached
+ * image into its frame: a slow camera never lowers the capture rate, the
+ * last camera image is reused until a new one arrives.
+ *
+ * A video file or a test pattern can stand in for the camera.
+ *
+ * @author util2
+ */
+public class WebcamOverlay implements FrameOverlay, Runnable {
+
+    private final static int MARGIN = 16;
+
+    private final FrameGrabber grabber;
+    private final boolean live;
+    private final int width;
+    private final int height;
+
+    // The grabbing thread fills spare, then swaps it with latest
+    private final Object lock = new Object();
+    private byte[] latest;
+    private byte[] spare;
+    private boolean hasImage = false;
+
+    private Thread process;
+    private volatile boolean onLoop = false;
+
+    /**
+     * @param grabber the source, not started yet
+     * @param live true for a camera, false for a file that must be paced
+     * @param width width of the overlay, in pixels
+     * @param height height of the overlay, in pixels
+     */
+    public WebcamOverlay(FrameGrabber grabber, boolean live, int width, int height) {
+        this.grabber = grabber;
+        this.live = live;
+        this.width = width;
+        this.height = height;
+        this.latest = new byte[width * height * 3];
+        this.spare = new byte[width * height * 3];
+
+        // Scaled once, by FFmpeg, to the size of the overlay
+        grabber.setImageWidth(width);
+        grabber.setImageHeight(height);
+        grabber.setPixelFormat(avutil.AV_PIX_FMT_BGR24);
+    }
+
+    /**
+     * @param device the camera, /dev/video0 on Linux, its name on Windows
+     * and its index on macOS
+     * @param width width of the overlay
+     * @param height height of the overlay
+     * @return an overlay of this camera
+     */
+    public static WebcamOverlay forCamera(String device, int width, int height){
+        // Cameras are libavdevice inputs
+        avdevice.avdevice_register_all();
+        
+        String os = System.getProperty("os.name").toLowerCase();
+        FFmpegFrameGrabber g;
+        if(os.contains("win")){
+            g = new FFmpegFrameGrabber("video=" + device);
+            g.setFormat("dshow");
+        }else if(os.contains("mac")){
+            g = new FFmpegFrameGrabber(device);
+            g.setFormat("avfoundation");
+        }else{
+            g = new FFmpegFrameGrabber(device);
+            g.setFormat("video4linux2");
+        }
+        return new WebcamOverlay(g, true, width, height);
+    }
+
+    /**
+     * @param file a video played in loop in place of a camera
+     * @param width width of the overlay
+     * @param height height of the overlay
+     * @return an overlay of this file
+     */
+    public static WebcamOverlay forFile(File file, int width, int height){
+        return new WebcamOverlay(new FFmpegFrameGrabber(file), false, width, height);
+    }
+
+    /**
+     * @param width width of the overlay
+     * @param height height of the overlay
+     * @return an overlay of the FFmpeg test pattern, no camera needed
+     */
+    public static WebcamOverlay forTestPattern(int width, int height){
+        // The lavfi input comes with libavdevice too
+        avdevice.avdevice_register_all();
+        
+        FFmpegFrameGrabber g = new FFmpegFrameGrabber("testsrc=size=" + width + "x" + height + ":rate=25");
+        g.setFormat("lavfi");
+        return new WebcamOverlay(g, false, width, height);
+    }
+
+    public void start() throws FrameGrabber.Exception {
+        grabber.start();
+        onLoop = true;
+        process = new Thread(this, "Webcam");
+        process.setDaemon(true);
+        process.start();
+    }
+
+    public void stop(){
+        onLoop = false;
+        if(process != null){
+            process.interrupt();
+            try {
+                process.join(1000);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            process = null;
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            double rate = grabber.getFrameRate() > 0 ? grabber.getFrameRate() : 25;
+            long interval = (long)(1_000_000_000L / rate);
+            long next = System.nanoTime();
+
+            while(onLoop){
+                Frame f = grabber.grab();
+                if(f == null){
+                    // End of the stand-in file: loop
+                    if(live) break;
+                    grabber.setTimestamp(0);
+                    continue;
+                }
+                if(f.image == null) continue;
+
+                // Packed BGR rows, without the stride padding
+                ByteBuffer src = (ByteBuffer)f.image[0];
+                int rowBytes = width * 3;
+                for(int y=0; y<height; y++){
+                    src.get(y * f.imageStride, spare, y * rowBytes, rowBytes);
+                }
+                synchronized(lock){
+                    byte[] b = latest;
+                    latest = spare;
+                    spare = b;
+                    hasImage = true;
+                }
+
+                if(!live){
+                    next += interval;
+                    long wait = next - System.nanoTime();
+                    if(wait > 0) Thread.sleep(wait / 1_000_000L, (int)(wait % 1_000_000L));
+                }
+            }
+        } catch (FrameGrabber.Exception ex) {
+            Logger.getLogger(WebcamOverlay.class.getName()).log(Level.SEVERE, null, ex);
+        } catch (InterruptedException ex) {
+            // Stopped
+        } finally {
+            try {
+                grabber.close();
+            } catch (FrameGrabber.Exception ex) {
+                Logger.getLogger(WebcamOverlay.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+
+    @Override
+    public void apply(Frame frame, Rectangle r) {
+        // Bottom right corner, clipped if the capture is smaller
+        int left = Math.max(0, frame.imageWidth - width - MARGIN);
+        int top = Math.max(0, frame.imageHeight - height - MARGIN);
+        int w = Math.min(width, frame.imageWidth - left);
+        int h = Math.min(height, frame.imageHeight - top);
+
+        ByteBuffer dst = (ByteBuffer)frame.image[0];
+        synchronized(lock){
+            if(!hasImage) return;
+            for(int y=0; y<h; y++){
+                dst.put((top + y) * frame.imageStride + left * 3, latest, y * width * 3, w * 3);
+            }
+        }
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2023 util2
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.wingate.progressive.core.event;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * One chunk of audio read from the line and sent to the encoder.
+ *
+ * @author util2
+ */
+@Name("org.wingate.progressive.AudioChunk")
+@Label("Audio Chunk")
+@Category({"Progressive", "Capture"})
+@Description("Read and encode of one audio chunk")
+@StackTrace(false)
+public class AudioChunkEvent extends jdk.jfr.Event {
+    
+    @Label("Size")
+    @DataAmount(DataAmount.BYTES)
+    public long bytes;
+    
+    @Label("Samples")
+    public int samples;
+    
+    @Label("Sample Rate")
+    public int sampleRate;
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2023 util2
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.wingate.progressive.core.event;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Conversion of a capture to the BGR frame given to the encoder, overlays
+ * included.
+ *
+ * @author util2
+ */
+@Name("org.wingate.progressive.FrameConvert")
+@Label("Frame Convert")
+@Category({"Progressive", "Capture"})
+@Description("BGR conversion and overlays of one frame")
+@StackTrace(false)
+public class FrameConvertEvent extends jdk.jfr.Event {
+    
+    @Label("Frame Size")
+    @DataAmount(DataAmount.BYTES)
+    public long bytes;
+    
+    @Label("Overlays")
+    public int overlays;
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2023 util2
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.wingate.progressive.core.event;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * The video fell behind the wall clock and the recorder timestamp was
+ * pushed forward (lip-flap correction).
+ *
+ * @author util2
+ */
+@Name("org.wingate.progressive.TimestampCorrection")
+@Label("A/V Timestamp Correction")
+@Category({"Progressive", "Capture"})
+@Description("Recorder timestamp moved forward to the wall clock")
+@StackTrace(false)
+public class TimestampCorrectionEvent extends jdk.jfr.Event {
+    
+    @Label("Wall Clock Timestamp")
+    @Timespan(Timespan.MICROSECONDS)
+    public long videoTimestamp;
+    
+    @Label("Recorder Timestamp")
+    @Timespan(Timespan.MICROSECONDS)
+    public long recorderTimestamp;
+    
+    @Label("Correction")
+    @Timespan(Timespan.MICROSECONDS)
+    public long correction;
+    
+    @Label("Frames Dropped")
+    public long framesDropped;
+}